@@ -16,17 +16,25 @@ package com.google.api.client.util.store;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.client.auth.oauth2.StoredCredential;
+import com.google.api.client.util.IOUtils;
 import com.google.api.client.util.Maps;
 import com.wire.bots.sdk.Configuration;
+import com.wire.bots.sdk.tools.Logger;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.Serializable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.HashMap;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class RedisDataStoreFactory extends FileDataStoreFactory {
 
@@ -34,9 +42,17 @@ public class RedisDataStoreFactory extends FileDataStoreFactory {
     private final String botId;
 
     public RedisDataStoreFactory(Configuration.DB db, String botId) throws IOException {
+        this(db, botId, 0);
+    }
+
+    /**
+     * @param writeBehind millis to coalesce writes for before they are flushed to Redis from a background thread,
+     *                    0 writes through on the caller's thread
+     */
+    public RedisDataStoreFactory(Configuration.DB db, String botId, long writeBehind) throws IOException {
         super(new File("/tmp"));
 
-        this.redis = new Redis(db);
+        this.redis = new Redis(db, writeBehind);
         this.botId = botId;
     }
 
@@ -47,38 +63,46 @@ public class RedisDataStoreFactory extends FileDataStoreFactory {
     }
 
     /**
-     * File data store that inherits from the abstract memory data store because the key-value pairs
-     * are stored in a memory cache, and saved in the file (see {@link #save()} when changing values.
+     * Data store that inherits from the abstract memory data store because the key-value pairs are stored in a
+     * memory cache. Every key is a field of a Redis hash, {@link #save()} writes only the fields that changed since
+     * the last save.
      *
      * @param <V> serializable type of the mapped value
      */
     private class RedisDataStore<V extends Serializable> extends AbstractMemoryDataStore<V> {
-        private final ObjectMapper objectMapper = new ObjectMapper();
         private final RedisDataStoreFactory dataStoreFactory;
+        // what Redis holds, to find the fields that changed
+        private final HashMap<String, byte[]> persisted = new HashMap<>();
 
         RedisDataStore(RedisDataStoreFactory dataStore, String id) throws IOException {
             super(dataStore, id);
             this.dataStoreFactory = dataStore;
 
-            String value = redis.get(id);
-            // create new file (if necessary)
-            if (value == null) {
-                keyValueMap = Maps.newHashMap();
-                // save the credentials
-                //Logger.info("Saving credentials for %s", id);
-                save();
-            } else {
-                // load credentials
-                //Logger.info("Loading credentials for %s", id);
-                keyValueMap = objectMapper.readValue(value, new TypeReference<HashMap<String, byte[]>>() {
-                });
-            }
+            keyValueMap = Maps.newHashMap();
+            keyValueMap.putAll(redis.load(id));
+            persisted.putAll(keyValueMap);
         }
 
         @Override
         void save() throws IOException {
-            String s = objectMapper.writeValueAsString(keyValueMap);
-            redis.put(getId(), s);
+            HashMap<String, byte[]> changed = new HashMap<>();
+            ArrayList<String> deleted = new ArrayList<>();
+
+            for (Map.Entry<String, byte[]> entry : keyValueMap.entrySet()) {
+                if (!Arrays.equals(entry.getValue(), persisted.get(entry.getKey())))
+                    changed.put(entry.getKey(), entry.getValue());
+            }
+            for (String key : persisted.keySet()) {
+                if (!keyValueMap.containsKey(key))
+                    deleted.add(key);
+            }
+
+            if (changed.isEmpty() && deleted.isEmpty())
+                return;
+
+            redis.write(getId(), changed, deleted);
+            persisted.clear();
+            persisted.putAll(keyValueMap);
         }
 
         @Override
@@ -87,17 +111,74 @@ public class RedisDataStoreFactory extends FileDataStoreFactory {
         }
     }
 
+    /**
+     * Values arrive Java serialized from the memory data store. Stored credentials, the only values we keep, are
+     * written as their three fields instead, everything else as is behind a tag byte.
+     */
+    static class Codec {
+        private static final byte SERIALIZED = 0;
+        private static final byte CREDENTIAL = 1;
+
+        static byte[] encode(byte[] serialized) throws IOException {
+            Object value = IOUtils.deserialize(serialized);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(serialized.length / 2);
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (value instanceof StoredCredential) {
+                StoredCredential credential = (StoredCredential) value;
+                out.writeByte(CREDENTIAL);
+                writeString(out, credential.getAccessToken());
+                writeString(out, credential.getRefreshToken());
+                Long expiration = credential.getExpirationTimeMilliseconds();
+                out.writeBoolean(expiration != null);
+                out.writeLong(expiration != null ? expiration : 0L);
+            } else {
+                out.writeByte(SERIALIZED);
+                out.write(serialized);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        static byte[] decode(byte[] encoded) throws IOException {
+            if (encoded.length == 0 || encoded[0] == SERIALIZED)
+                return Arrays.copyOfRange(encoded, Math.min(1, encoded.length), encoded.length);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded, 1, encoded.length - 1));
+            StoredCredential credential = new StoredCredential()
+                    .setAccessToken(readString(in))
+                    .setRefreshToken(readString(in));
+            boolean hasExpiration = in.readBoolean();
+            long expiration = in.readLong();
+            credential.setExpirationTimeMilliseconds(hasExpiration ? expiration : null);
+            return IOUtils.serialize(credential);
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null)
+                out.writeUTF(value);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+
     private static class Redis {
         private static final int TIMEOUT = 5000;
+        private static final ObjectMapper objectMapper = new ObjectMapper();
         private static JedisPool pool;
+        private static volatile WriteBehind writeBehind;
         private final String host;
         private final Integer port;
         private final String password;
+        private final long window;
 
-        Redis(Configuration.DB db) {
+        Redis(Configuration.DB db, long window) {
             this.host = db.host;
             this.port = db.port;
             this.password = db.password;
+            this.window = window;
         }
 
         private static JedisPoolConfig buildPoolConfig() {
@@ -129,23 +210,250 @@ public class RedisDataStoreFactory extends FileDataStoreFactory {
             return pool;
         }
 
-        String get(String id) {
+        static byte[] bytes(String s) {
+            return s.getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Reads the hash and the legacy JSON string in one round trip. A legacy string is moved into the hash.
+         * Writes that are still waiting to be flushed are applied on top, so callers read their own writes.
+         *
+         * @return serialized value per key
+         */
+        Map<String, byte[]> load(String id) throws IOException {
+            // taken before the read, a flush in between is then either in Redis or in the snapshot
+            HashMap<String, byte[]> unflushed = writeBehind != null ? writeBehind.snapshot(id) : null;
+            HashMap<String, byte[]> ret = new HashMap<>();
             try (Jedis jedis = getConnection()) {
-                String key = String.format("cali_%s", id);
-                return jedis.get(key);
+                Pipeline pipeline = jedis.pipelined();
+                Response<Map<byte[], byte[]>> hash = pipeline.hgetAll(bytes(hashKey(id)));
+                Response<String> legacy = pipeline.get(legacyKey(id));
+                pipeline.sync();
+
+                for (Map.Entry<byte[], byte[]> entry : hash.get().entrySet()) {
+                    ret.put(new String(entry.getKey(), StandardCharsets.UTF_8), Codec.decode(entry.getValue()));
+                }
+
+                if (legacy.get() != null) {
+                    if (ret.isEmpty())
+                        migrate(jedis, id, legacy.get(), ret);
+                    else
+                        jedis.del(legacyKey(id));
+                }
             }
+
+            WriteBehind.apply(unflushed, ret);
+            return ret;
         }
 
-        void put(String id, String data) {
+        /**
+         * @param changed serialized value per key
+         */
+        void write(String id, Map<String, byte[]> changed, List<String> deleted) throws IOException {
+            if (window > 0) {
+                writeBehind().enqueue(id, changed, deleted);
+                return;
+            }
+
             try (Jedis jedis = getConnection()) {
-                String key = String.format("cali_%s", id);
-                jedis.set(key, data);
+                Pipeline pipeline = jedis.pipelined();
+                write(pipeline, id, changed, deleted);
+                pipeline.sync();
+            }
+        }
+
+        private static void write(Pipeline pipeline, String id, Map<String, byte[]> changed, Collection<String> deleted)
+                throws IOException {
+            byte[] key = bytes(hashKey(id));
+            if (!changed.isEmpty()) {
+                HashMap<byte[], byte[]> fields = new HashMap<>();
+                for (Map.Entry<String, byte[]> entry : changed.entrySet()) {
+                    fields.put(bytes(entry.getKey()), Codec.encode(entry.getValue()));
+                }
+                pipeline.hmset(key, fields);
+            }
+            if (!deleted.isEmpty()) {
+                byte[][] fields = new byte[deleted.size()][];
+                int i = 0;
+                for (String field : deleted) {
+                    fields[i++] = bytes(field);
+                }
+                pipeline.hdel(key, fields);
+            }
+        }
+
+        private void migrate(Jedis jedis, String id, String json, Map<String, byte[]> ret) throws IOException {
+            HashMap<String, byte[]> values = objectMapper.readValue(json, new TypeReference<HashMap<String, byte[]>>() {
+            });
+
+            HashMap<byte[], byte[]> fields = new HashMap<>();
+            for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+                fields.put(bytes(entry.getKey()), Codec.encode(entry.getValue()));
+                ret.put(entry.getKey(), entry.getValue());
             }
+
+            Pipeline pipeline = jedis.pipelined();
+            if (!fields.isEmpty())
+                pipeline.hmset(bytes(hashKey(id)), fields);
+            pipeline.del(legacyKey(id));
+            pipeline.sync();
+        }
+
+        private static String hashKey(String id) {
+            return String.format("cali_h_%s", id);
+        }
+
+        private static String legacyKey(String id) {
+            return String.format("cali_%s", id);
         }
 
         private Jedis getConnection() {
             return pool(host, port, password).getResource();
         }
 
+        private void flush(Map<String, HashMap<String, byte[]>> batch) {
+            try (Jedis jedis = getConnection()) {
+                Pipeline pipeline = jedis.pipelined();
+                for (Map.Entry<String, HashMap<String, byte[]>> entry : batch.entrySet()) {
+                    HashMap<String, byte[]> changed = new HashMap<>();
+                    ArrayList<String> deleted = new ArrayList<>();
+                    for (Map.Entry<String, byte[]> field : entry.getValue().entrySet()) {
+                        if (field.getValue() == WriteBehind.DELETED)
+                            deleted.add(field.getKey());
+                        else
+                            changed.put(field.getKey(), field.getValue());
+                    }
+                    write(pipeline, entry.getKey(), changed, deleted);
+                }
+                pipeline.sync();
+            }
+        }
+
+        private WriteBehind writeBehind() {
+            synchronized (Redis.class) {
+                if (writeBehind == null)
+                    writeBehind = WriteBehind.start(this::flush, window);
+                return writeBehind;
+            }
+        }
+    }
+
+    /**
+     * Collects the writes per store and flushes them in pipelined batches from one background thread. Repeated
+     * writes of the same field within the window are coalesced into the last one. Pending and in-flight writes are
+     * overlaid on reads, and whatever is left is flushed on shutdown.
+     */
+    static class WriteBehind {
+        private static final int BATCH = 256;
+        // marks a deleted field
+        static final byte[] DELETED = new byte[0];
+
+        interface Sink {
+            void write(Map<String, HashMap<String, byte[]>> batch) throws Exception;
+        }
+
+        private final ConcurrentHashMap<String, HashMap<String, byte[]>> pending = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, HashMap<String, byte[]>> inflight = new ConcurrentHashMap<>();
+        // taken while writes move between pending and inflight, so that snapshots see each write in one of them
+        private final Object moves = new Object();
+        private final Sink sink;
+
+        WriteBehind(Sink sink) {
+            this.sink = sink;
+        }
+
+        /**
+         * Flushes every window from a background thread and once more on shutdown.
+         */
+        static WriteBehind start(Sink sink, long window) {
+            WriteBehind ret = new WriteBehind(sink);
+            ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "redis-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(ret::flush, window, window, TimeUnit.MILLISECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(ret::flush, "redis-write-behind-shutdown"));
+            return ret;
+        }
+
+        void enqueue(String id, Map<String, byte[]> changed, List<String> deleted) {
+            pending.compute(id, (key, fields) -> {
+                if (fields == null)
+                    fields = new HashMap<>();
+                fields.putAll(changed);
+                for (String field : deleted) {
+                    fields.put(field, DELETED);
+                }
+                return fields;
+            });
+        }
+
+        /**
+         * The writes of the store that are not in Redis yet, in-flight ones overwritten by pending ones. Consistent
+         * with a concurrent flush, which only moves writes between the two under the same lock.
+         */
+        HashMap<String, byte[]> snapshot(String id) {
+            HashMap<String, byte[]> ret = new HashMap<>();
+            synchronized (moves) {
+                HashMap<String, byte[]> flushing = inflight.get(id);
+                if (flushing != null)
+                    ret.putAll(flushing);
+                pending.computeIfPresent(id, (key, fields) -> {
+                    ret.putAll(fields);
+                    return fields;
+                });
+            }
+            return ret;
+        }
+
+        /**
+         * Applies a {@link #snapshot(String)} to values read from Redis.
+         */
+        static void apply(Map<String, byte[]> fields, Map<String, byte[]> values) {
+            if (fields == null)
+                return;
+            for (Map.Entry<String, byte[]> field : fields.entrySet()) {
+                if (field.getValue() == DELETED)
+                    values.remove(field.getKey());
+                else
+                    values.put(field.getKey(), field.getValue());
+            }
+        }
+
+        synchronized void flush() {
+            ArrayList<String> ids = new ArrayList<>(pending.keySet());
+            for (int from = 0; from < ids.size(); from += BATCH) {
+                List<String> batch = ids.subList(from, Math.min(from + BATCH, ids.size()));
+                synchronized (moves) {
+                    for (String id : batch) {
+                        pending.computeIfPresent(id, (key, fields) -> {
+                            inflight.put(key, fields);
+                            return null;
+                        });
+                    }
+                }
+
+                try {
+                    sink.write(inflight);
+                    synchronized (moves) {
+                        inflight.clear();
+                    }
+                } catch (Exception e) {
+                    synchronized (moves) {
+                        // keep them for the next flush. What is pending now was written after them and wins
+                        for (Map.Entry<String, HashMap<String, byte[]>> entry : inflight.entrySet()) {
+                            pending.merge(entry.getKey(), new HashMap<>(entry.getValue()), (newer, retry) -> {
+                                retry.putAll(newer);
+                                return retry;
+                            });
+                        }
+                        inflight.clear();
+                    }
+                    Logger.warning("RedisDataStoreFactory: write behind flush failed: %s", e);
+                    return;
+                }
+            }
+        }
     }
 }
@@ -1,10 +1,12 @@
 package com.wire.bots.cali;
 
-import com.google.api.client.util.DateTime;
-import com.google.api.services.calendar.model.Event;
-import com.google.api.services.calendar.model.EventReminder;
-import com.google.api.services.calendar.model.Events;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.api.services.calendar.model.Channel;
 import com.wire.bots.sdk.ClientRepo;
+import com.wire.bots.sdk.Configuration;
 import com.wire.bots.sdk.WireClient;
 import com.wire.bots.sdk.tools.Logger;
 
@@ -13,127 +15,396 @@ import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 
 class AlertManager {
-    private static final int PERIOD = 1;
-    private final DateFormat dateFormat = new SimpleDateFormat("EEEEE, dd MMMMM 'at' HH:mm");
-    private final Timer timer = new Timer();
-    private final HashMap<String, Event> remindersMap = new HashMap<>();
+    private static final int POLL_EVENTS = 10;
+    private static final int WORKERS = 8;
+    private static final long TICK = 100;
+    private static final int WHEEL_BITS = 8;
+    // channels are renewed this long before they expire
+    private static final long RENEW_CHANNEL = TimeUnit.DAYS.toMillis(1);
+    // reminders are only timed on the wheel, fetching and sending happens on the workers
+    private final ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+    private final TimingWheel wheel = TimingWheel.start(TICK, WHEEL_BITS, workers);
+    private final EventVerifier verifier = new EventVerifier(workers);
+    // reminders on the wheel, evicted once they fired
+    private final ReminderIndex<Reminder> reminders = new ReminderIndex<>(1024);
+    private final ScheduledExecutorService cycles = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService pollers;
+    private final PollScheduler schedule;
+    private final ShardLeases leases;
+    private final DeliveryLedger ledger;
+    private final CredentialHealth health;
+    private final Timer pollTimer;
+    // millis a bot waited for a poller after it was due
+    private final Histogram lag;
+    private final Config.Polling config;
     private final Database database;
+    // bots whose channel is being renewed
+    private final Set<String> renewing = ConcurrentHashMap.newKeySet();
 
-    AlertManager(Config.DB postgres) {
+    AlertManager(Config.Postgres postgres, Config.Polling config, Configuration.DB redis) {
         this.database = new Database(postgres);
+        this.leases = new ShardLeases(redis, config);
+        this.ledger = new DeliveryLedger(redis);
+        this.health = new CredentialHealth(postgres);
+        this.config = config;
+        this.pollers = Executors.newFixedThreadPool(config.threads);
+        this.schedule = new PollScheduler(TimeUnit.MINUTES.toMillis(config.minPeriod),
+                TimeUnit.MINUTES.toMillis(config.period));
+
+        MetricRegistry metrics = Service.metrics;
+        this.pollTimer = metrics.timer(MetricRegistry.name(AlertManager.class, "poll"));
+        this.lag = metrics.histogram(MetricRegistry.name(AlertManager.class, "lag"));
+        metrics.register(MetricRegistry.name(AlertManager.class, "scheduled"), (Gauge<Integer>) schedule::size);
+        metrics.register(MetricRegistry.name(AlertManager.class, "reminders"), (Gauge<Integer>) reminders::size);
+        metrics.register(MetricRegistry.name(AlertManager.class, "remindersBytes"), (Gauge<Long>) reminders::footprint);
+        metrics.register(MetricRegistry.name(AlertManager.class, "suspended"),
+                (Gauge<Integer>) () -> health.count(CredentialHealth.State.SUSPENDED));
+        metrics.register(MetricRegistry.name(AlertManager.class, "dormant"),
+                (Gauge<Integer>) () -> health.count(CredentialHealth.State.DORMANT));
     }
 
     boolean insertNewSubscriber(String botId) throws Exception {
         return database.insertSubscriber(botId);
     }
 
+    /**
+     * Changes are pushed through CalendarSync, polling only remains as a safety net for lost notifications. Each
+     * bot gets its own next poll time from the {@link PollScheduler}, the subscriber list is reconciled with it
+     * every period. With several replicas every node polls only the bots in the shards it holds. The reconcile also
+     * renews the push channels that are about to expire, a bot without one is polled at the shortest interval.
+     */
     void crone(final ClientRepo repo) {
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    ArrayList<String> subscribers = database.getSubscribers();
-                    for (String botId : subscribers) {
-                        try (WireClient wireClient = repo.getClient(botId)) {
-                            if (wireClient == null) {
-                                database.unsubscribe(botId);
-                                continue;
-                            }
-                            fetchEvents(wireClient);
+        leases.start(() -> cycles.execute(this::reconcile));
+        cycles.scheduleAtFixedRate(this::reconcile, 0, config.period, TimeUnit.MINUTES);
+        // whatever is left of the reminders that fired or were dropped on the way
+        cycles.scheduleAtFixedRate(() -> reminders.evict(System.currentTimeMillis()), 1, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < config.threads; i++) {
+            pollers.execute(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        PollScheduler.Due due = schedule.take();
+                        if (!leases.owns(due.botId)) {
+                            // the shard moved to another node
+                            schedule.remove(due.botId);
+                            continue;
                         }
+                        lag.update(Math.max(0, System.currentTimeMillis() - due.at));
+                        poll(repo, due.botId);
+                    } catch (InterruptedException e) {
+                        return;
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    Logger.warning("crone: error: %s", e);
                 }
+            });
+        }
+    }
+
+    private void reconcile() {
+        try {
+            CalendarAPI.setNodes(leases.nodes());
+            long now = System.currentTimeMillis();
+            ArrayList<String> owned = new ArrayList<>();
+            for (String botId : database.getSubscribers()) {
+                // dormant bots wait for the user to sign in again
+                if (!leases.owns(botId) || health.isDormant(botId))
+                    continue;
+                owned.add(botId);
+                if (!isWatched(botId, now + RENEW_CHANNEL) && health.available(botId) && renewing.add(botId))
+                    workers.execute(() -> renewChannel(botId));
             }
-        }, TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(PERIOD));
+            schedule.sync(owned, now);
+        } catch (Exception e) {
+            Logger.warning("crone: error: %s", e);
+        }
     }
 
-    private void fetchEvents(final WireClient wireClient) {
+    /**
+     * @return true while the bot's push channel is open at the given time
+     */
+    private boolean isWatched(String botId, long at) {
         try {
-            String botId = wireClient.getId();
-            Events events = CalendarAPI.listEvents(botId, 1);
-
-            for (final Event event : events.getItems()) {
-                try {
-                    int i = 0;
-                    List<EventReminder> overrides = event.getReminders().getOverrides();
-                    if (overrides != null) {
-                        for (EventReminder reminder : overrides) {
-                            scheduleReminder(wireClient, event, reminder, i++);
-                        }
-                    } else {
-                        for (EventReminder reminder : events.getDefaultReminders()) {
-                            scheduleReminder(wireClient, event, reminder, i++);
-                        }
-                    }
-                } catch (Exception e) {
-                    Logger.warning("AlertManager.fetchEvents: %s %s %s", botId, event.getId(), e);
-                }
+            SubscriberCache.Subscriber subscriber = database.getSubscriber(botId);
+            return subscriber != null && subscriber.channelExpiration > at;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void renewChannel(String botId) {
+        try {
+            Channel channel = CalendarAPI.watch(botId);
+            Logger.info("AlertManager: %s renewed channel: %s", botId, channel.getId());
+        } catch (Exception e) {
+            if (!health.onError(botId, e))
+                Logger.warning("AlertManager.renewChannel: %s %s", botId, e);
+        } finally {
+            renewing.remove(botId);
+        }
+    }
+
+    private void poll(ClientRepo repo, String botId) {
+        if (!health.available(botId)) {
+            if (health.isDormant(botId))
+                schedule.remove(botId);
+            else
+                schedule.polled(botId, PollScheduler.NONE, System.currentTimeMillis(), true);
+            return;
+        }
+
+        try (Timer.Context ignored = pollTimer.time();
+             WireClient wireClient = repo.getClient(botId)) {
+            if (wireClient == null) {
+                schedule.remove(botId);
+                database.unsubscribe(botId);
+                return;
+            }
+            CalendarEvent.Page events = fetch(wireClient);
+            health.succeeded(botId);
+            long now = System.currentTimeMillis();
+            schedule.polled(botId, nextReminder(events, now), now, isWatched(botId, now));
+        } catch (Exception e) {
+            long now = System.currentTimeMillis();
+            // backing off on quota errors would stop polling exactly when the quota is short
+            long throttled = CalendarAPI.throttled(botId, e);
+            if (throttled >= 0) {
+                schedule.throttled(botId, throttled, now);
+                return;
             }
+            schedule.failed(botId, now);
+            if (!health.onError(botId, e))
+                Logger.warning("crone: %s error: %s", botId, e);
+        }
+    }
+
+    private static long nextReminder(CalendarEvent.Page events, long now) {
+        long[] ret = {PollScheduler.NONE};
+        for (CalendarEvent event : events.items) {
+            if (!event.hasStartTime() || event.isCancelled())
+                continue;
+            event.forEachReminder(events.defaultReminders, (minutes, i) -> {
+                long at = event.start - TimeUnit.MINUTES.toMillis(minutes);
+                if (at > now && at < ret[0])
+                    ret[0] = at;
+            });
+        }
+        return ret[0];
+    }
+
+    void fetchEvents(final WireClient wireClient) {
+        try {
+            fetch(wireClient);
         } catch (IOException e) {
-            // Logger.warning("AlertManager.fetchEvents: %s", e);
+            if (!health.onError(wireClient.getId(), e))
+                Logger.warning("AlertManager.fetchEvents: %s %s", wireClient.getId(), e);
         }
     }
 
-    private void scheduleReminder(WireClient wireClient, Event event, EventReminder reminder, int i) {
-        String id = String.format("%s-%s-%d", wireClient.getId(), event.getId(), i);
-        if (remindersMap.put(id, event) != null)
+    boolean isAvailable(String botId) {
+        return health.available(botId);
+    }
+
+    boolean onError(String botId, Throwable error) {
+        return health.onError(botId, error);
+    }
+
+    private CalendarEvent.Page fetch(final WireClient wireClient) throws IOException {
+        String botId = wireClient.getId();
+        CalendarEvent.Page events = CalendarAPI.listEvents(botId, POLL_EVENTS);
+
+        Set<String> delivered = delivered(botId, events);
+        for (final CalendarEvent event : events.items) {
+            scheduleReminders(wireClient, event, events.defaultReminders, delivered);
+        }
+        return events;
+    }
+
+    // reminders of the page that were sent before a restart or by another node
+    private Set<String> delivered(String botId, CalendarEvent.Page events) {
+        ArrayList<String> keys = new ArrayList<>();
+        for (CalendarEvent event : events.items) {
+            if (!event.hasStartTime() || event.isCancelled())
+                continue;
+            event.forEachReminder(events.defaultReminders,
+                    (minutes, i) -> keys.add(DeliveryLedger.key(botId, event.id, event.start, minutes)));
+        }
+        return ledger.delivered(keys);
+    }
+
+    /**
+     * Applies the events changed since the last sync. The reminders of cancelled events are cancelled, the others
+     * are rescheduled. Changed recurring events are re-listed as single instances.
+     */
+    void onChanges(final WireClient wireClient, CalendarEvent.Page changes) {
+        if (!changes.isEmpty())
+            schedule.changed(wireClient.getId(), System.currentTimeMillis());
+
+        Set<String> delivered = delivered(wireClient.getId(), changes);
+        boolean recurring = false;
+        for (final CalendarEvent event : changes.items) {
+            if (event.isCancelled()) {
+                cancelReminders(wireClient.getId(), event.id, 0);
+                continue;
+            }
+
+            if (event.recurring)
+                recurring = true;
+            else
+                scheduleReminders(wireClient, event, changes.defaultReminders, delivered);
+        }
+
+        if (recurring)
+            fetchEvents(wireClient);
+    }
+
+    private void scheduleReminders(WireClient wireClient, CalendarEvent event, int[] defaultReminders,
+                                   Set<String> delivered) {
+        try {
+            int count = event.forEachReminder(defaultReminders,
+                    (minutes, i) -> scheduleReminder(wireClient, event, minutes, i, delivered));
+            // reminders that were removed from the event
+            cancelReminders(wireClient.getId(), event.id, count);
+        } catch (Exception e) {
+            Logger.warning("AlertManager.scheduleReminders: %s %s %s", wireClient.getId(), event.id, e);
+        }
+    }
+
+    private void scheduleReminder(WireClient wireClient, CalendarEvent event, int minutes, int i,
+                                  Set<String> delivered) {
+        if (!event.hasStartTime())
             return;
 
-        final DateTime start = event.getStart().getDateTime();
-        if (start != null) {
-            Date at = new Date(start.getValue() - TimeUnit.MINUTES.toMillis(reminder.getMinutes()));
-            if (at.getTime() > System.currentTimeMillis()) {
-                scheduleReminder(wireClient, at, event.getId());
+        final long scheduledStart = event.start;
+        final long at = scheduledStart - TimeUnit.MINUTES.toMillis(minutes);
+        final String delivery = DeliveryLedger.key(wireClient.getId(), event.id, scheduledStart, minutes);
+        if (delivered.contains(delivery))
+            return;
+        final long key = ReminderIndex.key(wireClient.getId(), event.id, i);
+
+        reminders.compute(key, at, previous -> {
+            if (previous != null) {
+                if (previous.at == at) {
+                    previous.event = event;
+                    return previous;
+                }
+                // the event moved or its reminder changed
+                previous.timeout.cancel();
             }
+            if (at <= System.currentTimeMillis())
+                return null;
+            Reminder next = new Reminder(key, at, event, delivery);
+            next.timeout = wheel.schedule(at, () -> sendReminder(wireClient, next, scheduledStart));
+            return next;
+        });
+    }
+
+    private void cancelReminders(String botId, String eventId, int from) {
+        for (int i = from; ; i++) {
+            Reminder reminder = reminders.remove(ReminderIndex.key(botId, eventId, i));
+            if (reminder == null)
+                return;
+            reminder.timeout.cancel();
         }
     }
 
-    private void scheduleReminder(final WireClient wireClient, final Date at, final String eventId) {
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                String botId = wireClient.getId();
-                try {
-                    Event event = CalendarAPI.getEvent(botId, eventId);
-                    if (event != null) {
-                        boolean muted = database.isMuted(botId);
-                        if (muted) {
-                            Logger.info("scheduleReminder: %s Event: %s Muted", botId, event.getId());
-                            return;
-                        }
+    private void sendReminder(WireClient wireClient, Reminder reminder, long scheduledStart) {
+        String botId = wireClient.getId();
+        reminders.remove(reminder.key, reminder);
+        // Pushed changes schedule reminders on whichever node got the notification, and after a handover the old
+        // owner still holds the ones it scheduled. All of them fire, the DeliveryLedger lets only one through
+        if (!health.available(botId))
+            return;
 
-                        if (Objects.equals("cancelled", event.getStatus())) {
-                            Logger.info("scheduleReminder: %s Event: %s Cancelled: %s", botId, event.getId(), event.getStatus());
-                            return;
-                        }
+        verifier.verify(botId, reminder.event).whenCompleteAsync((event, error) -> {
+            if (error != null) {
+                if (!health.onError(botId, error))
+                    Logger.warning("scheduleReminder: %s error: %s", botId, error);
+            } else {
+                sendReminder(wireClient, event, scheduledStart, reminder.delivery);
+            }
+        }, workers);
+    }
 
-                        int timeZoneShift = event.getStart().getDateTime().getTimeZoneShift();
-                        long start = event.getStart().getDateTime().getValue();
-                        int minutes = Math.round((start - System.currentTimeMillis()) / 60000f);
+    private void sendReminder(WireClient wireClient, CalendarEvent event, long scheduledStart, String delivery) {
+        String botId = wireClient.getId();
+        try {
+            if (event != null) {
+                boolean muted = database.isMuted(botId);
+                if (muted) {
+                    Logger.info("scheduleReminder: %s Event: %s Muted", botId, event.id);
+                    return;
+                }
 
-                        String msg = String.format("Starting in %d minutes\n[%s](%s)\n%s",
-                                minutes,
-                                event.getSummary(),
-                                event.getHtmlLink(),
-                                dateFormat.format(new Date(start + TimeUnit.MINUTES.toMillis(timeZoneShift))));
+                if (event.isCancelled()) {
+                    Logger.info("scheduleReminder: %s Event: %s Cancelled: %s", botId, event.id, event.status);
+                    return;
+                }
 
-                        wireClient.ping();
-                        wireClient.sendText(msg);
-                    }
-                } catch (Exception e) {
-                    Logger.warning("scheduleReminder: %s error: %s", botId, e);
+                if (!event.hasStartTime() || event.start != scheduledStart) {
+                    Logger.info("scheduleReminder: %s Event: %s Moved", botId, event.id);
+                    return;
                 }
+
+                int minutes = Math.round((event.start - System.currentTimeMillis()) / 60000f);
+
+                DateFormat dateFormat = new SimpleDateFormat("EEEEE, dd MMMMM 'at' HH:mm");
+                dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+                String msg = String.format("Starting in %d minutes\n[%s](%s)\n%s",
+                        minutes,
+                        event.summary,
+                        event.htmlLink,
+                        dateFormat.format(new Date(event.localStart())));
+
+                long start = event.start;
+                String eventId = event.id;
+                // a retry does not ping again
+                boolean[] pinged = new boolean[1];
+                boolean queued = Service.outbox.send(botId, client -> {
+                    // claimed right before sending, given back when it fails so that the retry can claim it again.
+                    // The node that lost the claim does not ping either
+                    if (!ledger.claim(delivery, start)) {
+                        Logger.info("scheduleReminder: %s Event: %s Sent already", botId, eventId);
+                        return;
+                    }
+                    try {
+                        if (!pinged[0]) {
+                            client.ping();
+                            pinged[0] = true;
+                        }
+                        client.sendText(msg);
+                    } catch (Exception e) {
+                        ledger.release(delivery);
+                        throw e;
+                    }
+                });
+                if (!queued)
+                    Logger.warning("scheduleReminder: %s Event: %s Not sent, outbox full", botId, eventId);
             }
-        }, at);
+        } catch (Exception e) {
+            Logger.warning("scheduleReminder: %s error: %s", botId, e);
+        }
     }
 
     boolean removeSubscriber(String botId) throws SQLException {
+        schedule.remove(botId);
         return database.unsubscribe(botId);
     }
+
+    private static class Reminder {
+        final long key;
+        final long at;
+        // last seen version of the event, with its etag
+        volatile CalendarEvent event;
+        // key in the DeliveryLedger
+        final String delivery;
+        TimingWheel.Timeout timeout;
+
+        Reminder(long key, long at, CalendarEvent event, String delivery) {
+            this.key = key;
+            this.at = at;
+            this.event = event;
+            this.delivery = delivery;
+        }
+    }
 }
@@ -5,7 +5,17 @@ import com.google.api.client.auth.oauth2.DataStoreCredentialRefreshListener;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.BatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
@@ -13,14 +23,14 @@ import com.google.api.client.util.DateTime;
 import com.google.api.client.util.store.DataStoreFactory;
 import com.google.api.client.util.store.RedisDataStoreFactory;
 import com.google.api.services.calendar.Calendar;
+import com.google.api.services.calendar.CalendarRequest;
 import com.google.api.services.calendar.CalendarScopes;
 import com.google.api.services.calendar.model.*;
 import com.wire.bots.sdk.tools.Logger;
 import com.wire.bots.sdk.tools.Util;
-import org.ocpsoft.prettytime.nlp.PrettyTimeParser;
-import org.ocpsoft.prettytime.nlp.parse.DateGroup;
 
 import java.io.*;
+import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
@@ -28,13 +38,23 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class CalendarAPI {
-    private static final String APPLICATION_NAME = "Wire Cali Bot";
+    // Google only gzips responses for user agents that contain "gzip"
+    private static final String APPLICATION_NAME = "Wire Cali Bot (gzip)";
     private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
     private static final String CALENDAR_ID = "primary";
+    private static final String BATCH_URL = "https://www.googleapis.com/batch/calendar/v3";
+    private static final int SYNC_PAGE_SIZE = 2500;
+    private static final int MAX_CLIENTS = 10000;
     private static HttpTransport HTTP_TRANSPORT;
     private static final List<String> SCOPES = Collections.singletonList(CalendarScopes.CALENDAR_READONLY);
     private static GoogleClientSecrets clientSecrets;
     private static ConcurrentHashMap<String, GoogleAuthorizationCodeFlow> flows = new ConcurrentHashMap<>();
+    private static final CalendarQuota quota = new CalendarQuota(Service.CONFIG.getQuota());
+    private static final CredentialHealth health = new CredentialHealth(Service.CONFIG.getPostgres());
+    private static final Database database = new Database(Service.CONFIG.getPostgres());
+    private static final CalendarClients clients = new CalendarClients(MAX_CLIENTS,
+            botId -> getFlow(botId).loadCredential(botId),
+            CalendarAPI::newCalendar);
     private static final Pattern VALID_EMAIL_ADDRESS_REGEX =
             Pattern.compile("[a-zA-Z0-9_.+-]+@[a-zA-Z0-9-]+\\.[a-zA-Z0-9-.]+", Pattern.CASE_INSENSITIVE);
 
@@ -45,7 +65,7 @@ public class CalendarAPI {
 
         try (InputStream in = new FileInputStream(Service.CONFIG.getSecretPath())) {
             clientSecrets = GoogleClientSecrets.load(JSON_FACTORY, new InputStreamReader(in));
-            HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+            HTTP_TRANSPORT = CalendarTransport.create(Service.CONFIG.getTransport());
         } catch (Exception t) {
             t.printStackTrace();
         }
@@ -69,37 +89,59 @@ public class CalendarAPI {
                 .setRedirectUri(getRedirect())
                 .execute();
 
-        return flow.createAndStoreCredential(response, botId);
+        Credential credential = flow.createAndStoreCredential(response, botId);
+        clients.invalidate(botId);
+        // signed in again, suspended and dormant bots are polled again
+        health.succeeded(botId);
+        return credential;
+    }
+
+    /**
+     * The number of live replicas changed, they share the project's quota.
+     */
+    static void setNodes(int nodes) {
+        quota.setNodes(nodes);
+    }
+
+    /**
+     * @return millis until the bot may call Google again when the error was a quota error, -1 otherwise
+     */
+    static long throttled(String botId, Throwable error) {
+        return quota.throttled(botId, error);
     }
 
     public static Calendar getCalendarService(String botId) throws IOException {
-        Credential credential = getFlow(botId).loadCredential(botId);
-        return new Calendar.Builder(HTTP_TRANSPORT, JSON_FACTORY, credential)
+        return clients.get(botId);
+    }
+
+    private static Calendar newCalendar(String botId, Credential credential) {
+        HttpRequestInitializer initializer = CalendarTransport.initializer(credential, Service.CONFIG.getTransport());
+        return new Calendar.Builder(HTTP_TRANSPORT, JSON_FACTORY, quota.initializer(botId, initializer))
                 .setApplicationName(APPLICATION_NAME)
                 .build();
     }
 
-    static Event addEvent(String botId, String line) throws IOException {
-        List<DateGroup> dateGroups = new PrettyTimeParser().parseSyntax(line);
-        if (dateGroups.isEmpty())
+    /**
+     * @param timeZone the calendar's time zone, times in the line are read in this zone
+     */
+    static Event addEvent(String botId, String line, TimeZone timeZone) throws IOException {
+        DateParser.Result date = DateParser.parse(line, timeZone);
+        if (date == null)
             return null;
 
-        int tzShift = getTimeZoneShift(botId);
-
-        DateGroup dateGroup = dateGroups.get(0);
-        Date s = dateGroup.getDates().get(0);
-
-        DateTime startDateTime = new DateTime(s.getTime() - TimeUnit.MINUTES.toMillis(tzShift));
+        DateTime startDateTime = new DateTime(date.getDate());
         EventDateTime startEvent = new EventDateTime()
-                .setDateTime(startDateTime);
+                .setDateTime(startDateTime)
+                .setTimeZone(timeZone.getID());
 
         Date e = new Date(startDateTime.getValue() + TimeUnit.HOURS.toMillis(1));
         EventDateTime end = new EventDateTime()
-                .setDateTime(new DateTime(e));
+                .setDateTime(new DateTime(e))
+                .setTimeZone(timeZone.getID());
 
         List<EventAttendee> attendees = extractAttendees(line);
 
-        String summary = extractSummary(line, dateGroup.getText(), attendees);
+        String summary = extractSummary(line, date.text, attendees);
 
         Event event = new Event()
                 .setSummary(summary.trim())
@@ -107,11 +149,11 @@ public class CalendarAPI {
                 .setEnd(end)
                 .setAttendees(attendees);
 
-        event = getCalendarService(botId)
+        event = execute(botId, getCalendarService(botId)
                 .events()
                 .insert(CALENDAR_ID, event)
                 .setSendNotifications(true)
-                .execute();
+                .setFields(EventFields.CREATED));
 
 //        Logger.info("`%s` at `%s` recurrent: %s, event: %s",
 //                dateGroup.getText(),
@@ -122,9 +164,15 @@ public class CalendarAPI {
         return event;
     }
 
+    /**
+     * Opens a push channel on the bot's calendar and stops the one it replaces. Channels expire, after about a week
+     * by default, the AlertManager renews them before they do.
+     */
     public static Channel watch(String botId) throws IOException {
         Channel channel = new Channel();
-        channel.setId(botId);
+        // channel ids have to be unique, the bot comes back in the token
+        channel.setId(UUID.randomUUID().toString());
+        channel.setToken(botId);
         channel.setKind("api#channel");
         channel.setType("web_hook");
         channel.setAddress(String.format("https://services.%s/cali/notifications", Util.getDomain()));
@@ -133,7 +181,23 @@ public class CalendarAPI {
                 .events()
                 .watch(CALENDAR_ID, channel);
 
-        return watch.execute();
+        channel = execute(botId, watch);
+
+        Channel previous;
+        try {
+            previous = database.setChannel(botId, channel);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        if (previous != null) {
+            try {
+                stop(botId, previous.getId(), previous.getResourceId());
+            } catch (IOException e) {
+                // it runs out on its own
+                Logger.warning("CalendarAPI.watch: %s stop %s: %s", botId, previous.getId(), e);
+            }
+        }
+        return channel;
     }
 
     private static String extractSummary(String line, String dates, List<EventAttendee> attendees) {
@@ -157,41 +221,86 @@ public class CalendarAPI {
         return ret;
     }
 
-    static Event getEvent(String botId, String eventId) throws IOException {
+    static CalendarEvent getEvent(String botId, String eventId) throws IOException {
         Calendar service = getCalendarService(botId);
-        return service
+        return decodeEvent(botId, service
                 .events()
                 .get(CALENDAR_ID, eventId)
-                .execute();
+                .setFields(EventFields.EVENT));
+    }
+
+    /**
+     * Conditional GET of the event using the etag of a snapshot we already have. Google answers with 304 when
+     * the event did not change, in that case the snapshot is returned.
+     */
+    static CalendarEvent getEvent(String botId, CalendarEvent snapshot) throws IOException {
+        Calendar.Events.Get get = getCalendarService(botId)
+                .events()
+                .get(CALENDAR_ID, snapshot.id)
+                .setFields(EventFields.EVENT);
+        if (snapshot.etag != null)
+            get.getRequestHeaders().setIfNoneMatch(snapshot.etag);
+        try {
+            return decodeEvent(botId, get);
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED)
+                return snapshot;
+            throw e;
+        }
+    }
+
+    static BatchRequest newBatch() {
+        // the global batch endpoint is gone, batches have to go to the API's own
+        return new BatchRequest(HTTP_TRANSPORT, null)
+                .setBatchUrl(new GenericUrl(BATCH_URL));
+    }
+
+    /**
+     * Adds a conditional events.get to the batch, like {@link #getEvent(String, CalendarEvent)}. The request is
+     * built by the bot's own client, so the part is sent with the bot's credential. An unchanged event fails the
+     * part with a 304 that has no error body.
+     */
+    static void queueGetEvent(BatchRequest batch, String botId, CalendarEvent snapshot,
+                              BatchCallback<CalendarEvent, GoogleJsonErrorContainer> callback) throws IOException {
+        Calendar.Events.Get get = getCalendarService(botId)
+                .events()
+                .get(CALENDAR_ID, snapshot.id)
+                .setFields(EventFields.EVENT);
+        if (snapshot.etag != null)
+            get.getRequestHeaders().setIfNoneMatch(snapshot.etag);
+        HttpRequest request = get.buildHttpRequest();
+        request.setParser(EventDecoder.PARSER);
+        batch.queue(request, CalendarEvent.class, GoogleJsonErrorContainer.class, callback);
     }
 
-    static Events listEvents(String botId, int maxResults) throws IOException {
+    static CalendarEvent.Page listEvents(String botId, int maxResults) throws IOException {
         Calendar service = getCalendarService(botId);
         DateTime now = new DateTime(System.currentTimeMillis());
-        return service.events().list("primary")
+        return decodeEvents(botId, service.events().list("primary")
                 .setMaxResults(maxResults)
                 .setTimeMin(now)
                 .setOrderBy("startTime")
                 .setSingleEvents(true)
                 .setShowDeleted(false)
-                .execute();
+                .setFields(EventFields.UPCOMING));
     }
 
-    static Events listEvents(String botId, DateTime min, DateTime max) throws IOException {
+    static CalendarEvent.Page listEvents(String botId, DateTime min, DateTime max) throws IOException {
         Calendar service = getCalendarService(botId);
-        return service.events().list("primary")
+        return decodeEvents(botId, service.events().list("primary")
                 .setTimeMin(min)
                 .setTimeMax(max)
                 .setOrderBy("startTime")
                 .setSingleEvents(true)
                 .setShowDeleted(false)
-                .execute();
+                .setFields(EventFields.LISTED));
     }
 
     private static GoogleAuthorizationCodeFlow getFlow(String botId) throws IOException {
         GoogleAuthorizationCodeFlow flow = flows.get(botId);
         if (flow == null) {
-            DataStoreFactory factory = new RedisDataStoreFactory(Service.CONFIG.db, botId);
+            DataStoreFactory factory = new RedisDataStoreFactory(Service.CONFIG.db, botId,
+                    Service.CONFIG.getCredentialsWriteBehind());
 
             flow = new GoogleAuthorizationCodeFlow.Builder(
                     HTTP_TRANSPORT, JSON_FACTORY, clientSecrets, SCOPES)
@@ -199,29 +308,22 @@ public class CalendarAPI {
                     .setAccessType("offline")
                     .setApprovalPrompt("force")
                     .addRefreshListener(new DataStoreCredentialRefreshListener(botId, factory))
+                    .addRefreshListener(clients.evictOnError(botId))
                     .build();
             flows.put(botId, flow);
         }
         return flow;
     }
 
-    private static int getTimeZoneShift(String botId) {
-        try {
-            Calendar service = getCalendarService(botId);
-            Events events = service.events().list(CALENDAR_ID)
-                    .setMaxResults(1)
-                    .setTimeMin(new DateTime(System.currentTimeMillis()))
-                    .setOrderBy("startTime")
-                    .setSingleEvents(true)
-                    .execute();
-            if (events.isEmpty())
-                return 0;
-
-            return events.getItems().get(0).getStart().getDateTime().getTimeZoneShift();
-        } catch (Exception e) {
-            Logger.warning("getTimeZoneShift: %s", e.getMessage());
-            return 0;
-        }
+    /**
+     * Time zone id of the bot's primary calendar, e.g. Europe/Berlin
+     */
+    static String getTimeZone(String botId) throws IOException {
+        return execute(botId, getCalendarService(botId)
+                .settings()
+                .get("timezone")
+                .setFields(EventFields.SETTING))
+                .getValue();
     }
 
     static ArrayList<String> extractEmail(String emailStr) {
@@ -233,14 +335,70 @@ public class CalendarAPI {
         return ret;
     }
 
-    public static Events getChanges(String botId, String syncToken) throws IOException {
-        return getCalendarService(botId).events().list(CALENDAR_ID)
-                .setSyncToken(syncToken).execute();
+    /**
+     * Incremental sync. Without a syncToken this only walks the pages to obtain a fresh nextSyncToken
+     * (items are masked out), with a syncToken it returns the events changed since that token was issued.
+     * Google answers with 410 once the token is no longer valid.
+     */
+    static CalendarEvent.Page getChanges(String botId, String syncToken, String pageToken) throws IOException {
+        Calendar.Events.List list = getCalendarService(botId).events().list(CALENDAR_ID)
+                .setMaxResults(SYNC_PAGE_SIZE)
+                .setPageToken(pageToken);
+        if (syncToken == null)
+            list.setFields(EventFields.SYNC_TOKEN);
+        else
+            list.setSyncToken(syncToken).setFields(EventFields.CHANGES);
+        return decodeEvents(botId, list);
+    }
+
+    /**
+     * Quota errors of a batch part, the parts do not go through {@link #executeUnparsed}.
+     */
+    static void onBatchError(String botId, GoogleJsonError error) {
+        quota.onError(botId, error.getCode(), error);
+    }
+
+    private static <T> T execute(String botId, CalendarRequest<T> request) throws IOException {
+        try {
+            return request.execute();
+        } catch (GoogleJsonResponseException e) {
+            quota.onError(botId, e.getStatusCode(), e.getDetails());
+            throw e;
+        }
+    }
+
+    private static HttpResponse executeUnparsed(String botId, CalendarRequest<?> request) throws IOException {
+        try {
+            return request.executeUnparsed();
+        } catch (GoogleJsonResponseException e) {
+            quota.onError(botId, e.getStatusCode(), e.getDetails());
+            throw e;
+        }
+    }
+
+    private static CalendarEvent decodeEvent(String botId, CalendarRequest<Event> request) throws IOException {
+        HttpResponse response = executeUnparsed(botId, request);
+        try {
+            return EventDecoder.decodeEvent(response.getContent());
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private static CalendarEvent.Page decodeEvents(String botId, CalendarRequest<Events> request)
+            throws IOException {
+        HttpResponse response = executeUnparsed(botId, request);
+        try {
+            return EventDecoder.decodeEvents(response.getContent());
+        } finally {
+            response.disconnect();
+        }
     }
 
-    public static void stop(String botId, String channelId) throws IOException {
+    public static void stop(String botId, String channelId, String resourceId) throws IOException {
         Channel channel = new Channel();
-        channel.setResourceId(channelId);
-        getCalendarService(botId).channels().stop(channel).execute();
+        channel.setId(channelId);
+        channel.setResourceId(resourceId);
+        execute(botId, getCalendarService(botId).channels().stop(channel));
     }
 }
@@ -0,0 +1,200 @@
+package com.wire.bots.cali;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.CredentialRefreshListener;
+import com.google.api.client.auth.oauth2.TokenErrorResponse;
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.services.calendar.Calendar;
+import com.wire.bots.sdk.tools.Logger;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+
+/**
+ * Bounded LRU of per-bot Calendar clients and their credentials, so that not every call costs a Redis read and a
+ * new client. Access tokens are refreshed in the background shortly before they expire. Expired entries and the
+ * ones whose refresh failed are dropped and loaded from the store again.
+ */
+class CalendarClients {
+    private static final long REFRESH_AHEAD = TimeUnit.MINUTES.toMillis(5);
+    private static final int REFRESHERS = 2;
+
+    private final int maxSize;
+    private final Loader loader;
+    // bot id and its credential, null for bots without one
+    private final BiFunction<String, Credential, Calendar> factory;
+    private final LinkedHashMap<String, Entry> entries;
+    // single flight: concurrent misses for the same bot wait for one load
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final ExecutorService refresher = Executors.newFixedThreadPool(REFRESHERS);
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter evictions;
+
+    CalendarClients(int maxSize, Loader loader, BiFunction<String, Credential, Calendar> factory) {
+        this.maxSize = maxSize;
+        this.loader = loader;
+        this.factory = factory;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                boolean evict = size() > CalendarClients.this.maxSize;
+                if (evict)
+                    CalendarClients.this.evictions.mark();
+                return evict;
+            }
+        };
+
+        MetricRegistry metrics = Service.metrics;
+        hits = metrics.meter(MetricRegistry.name(CalendarClients.class, "hits"));
+        misses = metrics.meter(MetricRegistry.name(CalendarClients.class, "misses"));
+        evictions = metrics.meter(MetricRegistry.name(CalendarClients.class, "evictions"));
+        metrics.register(MetricRegistry.name(CalendarClients.class, "size"), (Gauge<Integer>) this::size);
+    }
+
+    Calendar get(String botId) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(botId);
+        }
+
+        long now = System.currentTimeMillis();
+        if (entry != null && !entry.isExpired(now)) {
+            hits.mark();
+            if (entry.expiresBefore(now + REFRESH_AHEAD))
+                refreshAhead(botId, entry);
+            return entry.calendar;
+        }
+
+        misses.mark();
+        entry = load(botId);
+        // bots without credentials are not cached, Google will answer with 401
+        return entry != null ? entry.calendar : factory.apply(botId, null);
+    }
+
+    void invalidate(String botId) {
+        synchronized (this) {
+            if (entries.remove(botId) != null)
+                evictions.mark();
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * To be registered with the bot's flow so that a credential that failed to refresh is not served anymore.
+     */
+    CredentialRefreshListener evictOnError(String botId) {
+        return new CredentialRefreshListener() {
+            @Override
+            public void onTokenResponse(Credential credential, TokenResponse tokenResponse) {
+            }
+
+            @Override
+            public void onTokenErrorResponse(Credential credential, TokenErrorResponse tokenErrorResponse) {
+                invalidate(botId);
+            }
+        };
+    }
+
+    private Entry load(String botId) throws IOException {
+        CompletableFuture<Entry> future = new CompletableFuture<>();
+        CompletableFuture<Entry> running = loading.putIfAbsent(botId, future);
+        if (running != null)
+            return join(running);
+
+        try {
+            Entry entry = null;
+            Credential credential = loader.load(botId);
+            // the store is loaded once per flow and not re-read from Redis, so an expired token is refreshed
+            // here, once instead of by every concurrent caller
+            if (credential != null && (!isExpired(credential, System.currentTimeMillis()) || refresh(credential))) {
+                entry = new Entry(credential, factory.apply(botId, credential));
+                synchronized (this) {
+                    entries.put(botId, entry);
+                }
+            }
+            future.complete(entry);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(botId, future);
+        }
+    }
+
+    private void refreshAhead(String botId, Entry entry) {
+        if (!refreshing.add(botId))
+            return;
+
+        refresher.execute(() -> {
+            try {
+                if (!refresh(entry.credential))
+                    invalidate(botId);
+            } finally {
+                refreshing.remove(botId);
+            }
+        });
+    }
+
+    private static boolean refresh(Credential credential) {
+        try {
+            return credential.refreshToken();
+        } catch (IOException e) {
+            Logger.warning("CalendarClients: refresh failed: %s", e);
+            return false;
+        }
+    }
+
+    private static Entry join(CompletableFuture<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static boolean isExpired(Credential credential, long now) {
+        Long expiration = credential.getExpirationTimeMilliseconds();
+        return expiration != null && expiration <= now;
+    }
+
+    interface Loader {
+        Credential load(String botId) throws IOException;
+    }
+
+    private static class Entry {
+        final Credential credential;
+        final Calendar calendar;
+
+        Entry(Credential credential, Calendar calendar) {
+            this.credential = credential;
+            this.calendar = calendar;
+        }
+
+        boolean isExpired(long now) {
+            return CalendarClients.isExpired(credential, now);
+        }
+
+        boolean expiresBefore(long time) {
+            Long expiration = credential.getExpirationTimeMilliseconds();
+            return expiration != null && expiration < time;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.wire.bots.cali;
+
+/**
+ * The part of a Google Calendar event we use, decoded straight from the response by {@link EventDecoder}.
+ */
+class CalendarEvent {
+    static final long NO_START = Long.MIN_VALUE;
+    private static final String CANCELLED = "cancelled";
+
+    final String id;
+    final String etag;
+    final String status;
+    final String summary;
+    final String htmlLink;
+    // epoch millis, UTC midnight for all day events, NO_START when the response had none
+    final long start;
+    // minutes east of UTC the start was given in
+    final int timeZoneShift;
+    final boolean allDay;
+    final boolean recurring;
+    // minutes before the start, null when the calendar's default reminders apply
+    private final int[] reminders;
+
+    CalendarEvent(String id, String etag, String status, String summary, String htmlLink, long start,
+                  int timeZoneShift, boolean allDay, boolean recurring, int[] reminders) {
+        this.id = id;
+        this.etag = etag;
+        this.status = status;
+        this.summary = summary;
+        this.htmlLink = htmlLink;
+        this.start = start;
+        this.timeZoneShift = timeZoneShift;
+        this.allDay = allDay;
+        this.recurring = recurring;
+        this.reminders = reminders;
+    }
+
+    /**
+     * False for all day events and the ones without a start, e.g. cancelled in a sync response
+     */
+    boolean hasStartTime() {
+        return start != NO_START && !allDay;
+    }
+
+    boolean isCancelled() {
+        return CANCELLED.equals(status);
+    }
+
+    /**
+     * Start as wall clock time in the zone it was given in, for printing with a UTC formatter.
+     */
+    long localStart() {
+        return start + timeZoneShift * 60000L;
+    }
+
+    boolean hasReminders() {
+        return reminders != null;
+    }
+
+    int reminderCount() {
+        return reminders != null ? reminders.length : 0;
+    }
+
+    int reminderMinutes(int i) {
+        return reminders[i];
+    }
+
+    /**
+     * Calls the consumer with each reminder of the event: its own ones, or else the calendar's defaults.
+     *
+     * @return the number of reminders
+     */
+    int forEachReminder(int[] defaultReminders, ReminderConsumer consumer) {
+        int[] minutes = reminders != null ? reminders : defaultReminders;
+        for (int i = 0; i < minutes.length; i++)
+            consumer.accept(minutes[i], i);
+        return minutes.length;
+    }
+
+    interface ReminderConsumer {
+        void accept(int minutes, int index);
+    }
+
+    /**
+     * A page of events.list
+     */
+    static class Page {
+        final CalendarEvent[] items;
+        // minutes before the start
+        final int[] defaultReminders;
+        final String nextPageToken;
+        final String nextSyncToken;
+
+        Page(CalendarEvent[] items, int[] defaultReminders, String nextPageToken, String nextSyncToken) {
+            this.items = items;
+            this.defaultReminders = defaultReminders;
+            this.nextPageToken = nextPageToken;
+            this.nextSyncToken = nextSyncToken;
+        }
+
+        boolean isEmpty() {
+            return items.length == 0;
+        }
+    }
+}
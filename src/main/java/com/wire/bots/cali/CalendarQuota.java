@@ -0,0 +1,291 @@
+package com.wire.bots.cali;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponseInterceptor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission for the Calendar API. Every request, batch parts included, takes a token from the project's bucket and
+ * one from the bot's before it goes out and waits for them up to maxWait. Background work leaves the last part of
+ * the project's bucket to interactive commands. A quota error from Google pauses the bucket it was about, with
+ * exponential backoff and jitter, until a request of the bot succeeds again.
+ * <p>
+ * The project's quota is shared by all replicas, every node gets its share of the configured rate and burst.
+ */
+class CalendarQuota {
+    private static final int MAX_BOTS = 10000;
+    private static final String RATE_LIMIT = "rateLimitExceeded";
+    private static final String USER_RATE_LIMIT = "userRateLimitExceeded";
+    private static final String QUOTA_EXCEEDED = "quotaExceeded";
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int FORBIDDEN = 403;
+    private static final ThreadLocal<Boolean> interactive = ThreadLocal.withInitial(() -> false);
+
+    private final Config.Quota config;
+    private final TokenBucket project;
+    private final LinkedHashMap<String, TokenBucket> bots;
+    private final Timer admission;
+    private final Meter rejected;
+    private final Meter quotaErrors;
+
+    CalendarQuota(Config.Quota config) {
+        this.config = config;
+        this.project = new TokenBucket(config.projectRate, config.projectBurst, System.currentTimeMillis());
+        this.bots = new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+                return size() > MAX_BOTS;
+            }
+        };
+
+        MetricRegistry metrics = Service.metrics;
+        admission = metrics.timer(MetricRegistry.name(CalendarQuota.class, "admission"));
+        rejected = metrics.meter(MetricRegistry.name(CalendarQuota.class, "rejected"));
+        quotaErrors = metrics.meter(MetricRegistry.name(CalendarQuota.class, "quotaErrors"));
+        metrics.register(MetricRegistry.name(CalendarQuota.class, "tokens"), (Gauge<Double>) this::tokens);
+        metrics.register(MetricRegistry.name(CalendarQuota.class, "pausedMillis"), (Gauge<Long>) this::pausedMillis);
+        metrics.register(MetricRegistry.name(CalendarQuota.class, "pausedBots"), (Gauge<Integer>) this::pausedBots);
+    }
+
+    /**
+     * Marks the Calendar calls of the current thread as made on behalf of a user who waits for the answer.
+     */
+    static void setInteractive(boolean value) {
+        interactive.set(value);
+    }
+
+    /**
+     * Wraps the bot's initializer, requests are admitted right before they are sent.
+     */
+    HttpRequestInitializer initializer(String botId, HttpRequestInitializer initializer) {
+        return request -> {
+            initializer.initialize(request);
+            final HttpExecuteInterceptor execute = request.getInterceptor();
+            final HttpResponseInterceptor response = request.getResponseInterceptor();
+            request.setInterceptor(r -> {
+                acquire(botId, interactive.get());
+                if (execute != null)
+                    execute.intercept(r);
+            });
+            request.setResponseInterceptor(r -> {
+                if (r.isSuccessStatusCode())
+                    succeeded(botId);
+                if (response != null)
+                    response.interceptResponse(r);
+            });
+        };
+    }
+
+    void acquire(String botId, boolean interactive) throws IOException {
+        long start = System.currentTimeMillis();
+        long deadline = start + config.maxWait;
+        // background work must leave this many tokens in the project's bucket
+        while (true) {
+            long now = System.currentTimeMillis();
+            long wait;
+            synchronized (this) {
+                TokenBucket bot = bot(botId, now);
+                double floor = interactive ? 0 : project.burst * config.reserve;
+                wait = Math.max(project.delay(now, floor), bot.delay(now, 0));
+                if (wait == 0) {
+                    project.take();
+                    bot.take();
+                    admission.update(now - start, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            if (now + wait > deadline) {
+                rejected.mark();
+                throw new Throttled(String.format("Calendar quota: %s throttled for %d ms", botId, wait), wait);
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Calendar quota: interrupted");
+            }
+        }
+    }
+
+    /**
+     * Splits the project's rate and burst between this many replicas.
+     */
+    synchronized void setNodes(int nodes) {
+        nodes = Math.max(1, nodes);
+        project.resize(config.projectRate / nodes, Math.max(1, config.projectBurst / nodes),
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Pauses the project or the bot when Google answered with a quota error.
+     */
+    void onError(String botId, int status, GoogleJsonError error) {
+        String reason = reason(error);
+        if (!isQuotaError(status, reason))
+            return;
+
+        quotaErrors.mark();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            TokenBucket bucket = USER_RATE_LIMIT.equals(reason) ? bot(botId, now) : this.project;
+            bucket.pause(now, config.backoff, config.maxBackoff);
+        }
+    }
+
+    /**
+     * @return millis until a request of the bot may be admitted again when the error came from the quota, ours or
+     * Google's. -1 for any other error
+     */
+    long throttled(String botId, Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null)
+            error = error.getCause();
+        if (error instanceof Throttled)
+            return ((Throttled) error).delay;
+        if (!(error instanceof GoogleJsonResponseException))
+            return -1;
+
+        GoogleJsonResponseException e = (GoogleJsonResponseException) error;
+        if (!isQuotaError(e.getStatusCode(), reason(e.getDetails())))
+            return -1;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            TokenBucket bot = bots.get(botId);
+            long until = Math.max(project.pausedUntil, bot != null ? bot.pausedUntil : 0);
+            return Math.max(0, until - now);
+        }
+    }
+
+    private static boolean isQuotaError(int status, String reason) {
+        if (status == TOO_MANY_REQUESTS)
+            return true;
+        return status == FORBIDDEN
+                && (USER_RATE_LIMIT.equals(reason) || RATE_LIMIT.equals(reason) || QUOTA_EXCEEDED.equals(reason));
+    }
+
+    private synchronized void succeeded(String botId) {
+        project.penalties = 0;
+        TokenBucket bot = bots.get(botId);
+        if (bot != null)
+            bot.penalties = 0;
+    }
+
+    private TokenBucket bot(String botId, long now) {
+        return bots.computeIfAbsent(botId, k -> new TokenBucket(config.botRate, config.botBurst, now));
+    }
+
+    private static String reason(GoogleJsonError error) {
+        if (error == null)
+            return null;
+        List<GoogleJsonError.ErrorInfo> errors = error.getErrors();
+        return errors != null && !errors.isEmpty() ? errors.get(0).getReason() : null;
+    }
+
+    private synchronized double tokens() {
+        project.refill(System.currentTimeMillis());
+        return project.tokens;
+    }
+
+    private synchronized long pausedMillis() {
+        return Math.max(0, project.pausedUntil - System.currentTimeMillis());
+    }
+
+    private synchronized int pausedBots() {
+        long now = System.currentTimeMillis();
+        int ret = 0;
+        for (TokenBucket bot : bots.values()) {
+            if (bot.pausedUntil > now)
+                ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * A request that was not admitted within maxWait.
+     */
+    static class Throttled extends IOException {
+        // millis until it would have been
+        final long delay;
+
+        Throttled(String message, long delay) {
+            super(message);
+            this.delay = delay;
+        }
+    }
+
+    /**
+     * Not thread safe, guarded by the quota.
+     */
+    static class TokenBucket {
+        // tokens per milli
+        private double rate;
+        private double burst;
+        double tokens;
+        long pausedUntil;
+        int penalties;
+        private long refilled;
+
+        TokenBucket(double perSecond, double burst, long now) {
+            this.rate = perSecond / 1000;
+            this.burst = burst;
+            this.tokens = burst;
+            this.refilled = now;
+        }
+
+        void refill(long now) {
+            if (now > refilled) {
+                tokens = Math.min(burst, tokens + (now - refilled) * rate);
+                refilled = now;
+            }
+        }
+
+        /**
+         * @return millis until a token can be taken without going below floor, 0 when it can be taken now
+         */
+        long delay(long now, double floor) {
+            refill(now);
+            if (now < pausedUntil)
+                return pausedUntil - now;
+            double missing = floor + 1 - tokens;
+            return missing <= 0 ? 0 : (long) Math.ceil(missing / rate);
+        }
+
+        void resize(double perSecond, double burst, long now) {
+            refill(now);
+            this.rate = perSecond / 1000;
+            this.burst = burst;
+            this.tokens = Math.min(tokens, burst);
+        }
+
+        void take() {
+            tokens -= 1;
+        }
+
+        /**
+         * Backs off twice as long on every quota error in a row, the jitter keeps the nodes from coming back at
+         * the same time.
+         */
+        void pause(long now, long backoff, long maxBackoff) {
+            long pause = Math.min(maxBackoff, backoff << Math.min(penalties, 20));
+            pause = pause / 2 + ThreadLocalRandom.current().nextLong(pause / 2 + 1);
+            penalties++;
+            tokens = 0;
+            refilled = now;
+            pausedUntil = Math.max(pausedUntil, now + pause);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.wire.bots.cali;
+
+import com.google.api.client.http.HttpResponseException;
+import com.wire.bots.sdk.WireClient;
+import com.wire.bots.sdk.tools.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Push driven incremental sync. Google notifies us on /notifications when a calendar changes, we then pull only
+ * the changed events using the per-bot syncToken stored in Cali and hand them over to the AlertManager.
+ */
+public class CalendarSync {
+    private static final int THREADS = 4;
+    private static final int GONE = 410;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    // botId -> true when another notification arrived while the sync for that bot was running
+    private final ConcurrentHashMap<String, Boolean> dirty = new ConcurrentHashMap<>();
+    private final AlertManager alertManager;
+    private final Database database;
+    private final CalendarTimeZones timeZones;
+
+    CalendarSync(AlertManager alertManager, Config.Postgres postgres) {
+        this.alertManager = alertManager;
+        this.database = new Database(postgres);
+        this.timeZones = new CalendarTimeZones(postgres);
+    }
+
+    /**
+     * Called for every push notification. Returns immediately, notifications for a bot that arrive while its sync
+     * is still running are coalesced into one more pass.
+     */
+    public void onNotification(String botId) {
+        if (dirty.put(botId, Boolean.TRUE) == null)
+            executor.execute(() -> drain(botId));
+    }
+
+    private void drain(String botId) {
+        do {
+            dirty.put(botId, Boolean.FALSE);
+            if (!alertManager.isAvailable(botId))
+                continue;
+            try (WireClient wireClient = Service.repo.getClient(botId)) {
+                if (wireClient != null) {
+                    sync(wireClient);
+                    timeZones.onNotification(botId);
+                }
+            } catch (Exception e) {
+                if (!alertManager.onError(botId, e))
+                    Logger.warning("CalendarSync: %s error: %s", botId, e);
+            }
+        } while (!dirty.remove(botId, Boolean.FALSE));
+    }
+
+    private void sync(WireClient wireClient) throws Exception {
+        String botId = wireClient.getId();
+        String syncToken = database.getSyncToken(botId);
+        try {
+            syncToken = pull(wireClient, syncToken);
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() != GONE)
+                throw e;
+
+            Logger.info("CalendarSync: %s sync token expired, doing full sync", botId);
+            syncToken = pull(wireClient, null);
+        }
+        database.setSyncToken(botId, syncToken);
+    }
+
+    /**
+     * Pulls all pages of changes since syncToken and feeds them to the AlertManager. Without a token a fresh one is
+     * obtained and the upcoming events are fetched once so nothing that changed in between is lost.
+     *
+     * @return nextSyncToken to be used with the next notification
+     */
+    private String pull(WireClient wireClient, String syncToken) throws IOException {
+        String botId = wireClient.getId();
+        String pageToken = null;
+        CalendarEvent.Page changes;
+        do {
+            changes = CalendarAPI.getChanges(botId, syncToken, pageToken);
+            if (syncToken != null)
+                alertManager.onChanges(wireClient, changes);
+            pageToken = changes.nextPageToken;
+        } while (pageToken != null);
+
+        if (syncToken == null)
+            alertManager.fetchEvents(wireClient);
+
+        return changes.nextSyncToken;
+    }
+}
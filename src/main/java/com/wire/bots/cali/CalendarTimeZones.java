@@ -0,0 +1,64 @@
+package com.wire.bots.cali;
+
+import com.wire.bots.sdk.tools.Logger;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-bot calendar time zone, read once from the calendar settings and kept with the subscriber row. Commands use
+ * the stored value for a day, push notifications refresh it earlier so commands rarely have to.
+ */
+class CalendarTimeZones {
+    private static final long TTL = TimeUnit.DAYS.toMillis(1);
+    private static final long PUSH_REFRESH = TimeUnit.HOURS.toMillis(1);
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private final Database database;
+
+    CalendarTimeZones(Config.Postgres postgres) {
+        this.database = new Database(postgres);
+    }
+
+    /**
+     * Never fails, falls back to the last known zone or UTC when the settings could not be read.
+     */
+    TimeZone get(String botId) {
+        String timeZone = null;
+        try {
+            SubscriberCache.Subscriber subscriber = database.getSubscriber(botId);
+            if (subscriber != null) {
+                timeZone = subscriber.timeZone;
+                if (timeZone != null && !isOlderThan(subscriber, TTL))
+                    return TimeZone.getTimeZone(timeZone);
+            }
+            timeZone = refresh(botId);
+        } catch (Exception e) {
+            Logger.warning("CalendarTimeZones: %s error: %s", botId, e);
+        }
+        return timeZone != null ? TimeZone.getTimeZone(timeZone) : UTC;
+    }
+
+    /**
+     * Called from the sync thread, the user may have changed the calendar's zone along with its events.
+     */
+    void onNotification(String botId) {
+        try {
+            SubscriberCache.Subscriber subscriber = database.getSubscriber(botId);
+            if (subscriber != null && (subscriber.timeZone == null || isOlderThan(subscriber, PUSH_REFRESH)))
+                refresh(botId);
+        } catch (Exception e) {
+            Logger.warning("CalendarTimeZones: %s error: %s", botId, e);
+        }
+    }
+
+    private String refresh(String botId) throws Exception {
+        String timeZone = CalendarAPI.getTimeZone(botId);
+        database.setTimeZone(botId, timeZone);
+        return timeZone;
+    }
+
+    private static boolean isOlderThan(SubscriberCache.Subscriber subscriber, long age) {
+        return subscriber.timeZoneUpdated + age < System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,90 @@
+package com.wire.bots.cali;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP transport for all the Calendar and OAuth calls: a sized pool of persistent connections instead of
+ * HttpURLConnection's small keep-alive cache. Responses come gzipped, the client sends Accept-Encoding: gzip by
+ * default and Google also wants to see gzip in the User-Agent.
+ */
+class CalendarTransport {
+    private static final int HTTPS = 443;
+    private static final String[] HOSTS = {"www.googleapis.com", "accounts.google.com", "oauth2.googleapis.com"};
+    private static final long IDLE = 60;
+
+    static ApacheHttpTransport create(Config.Transport config) throws GeneralSecurityException, IOException {
+        ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder()
+                .trustCertificates(GoogleUtils.getCertificateTrustStore());
+
+        HttpParams params = builder.getHttpParams();
+        ConnManagerParams.setMaxTotalConnections(params, config.maxConnections);
+        // almost all calls go to www.googleapis.com, so one route may use the whole pool
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(config.maxConnections));
+        // millis to wait for a pooled connection
+        ConnManagerParams.setTimeout(params, config.connectTimeout);
+        HttpConnectionParams.setConnectionTimeout(params, config.connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, config.readTimeout);
+
+        ApacheHttpTransport transport = builder.build();
+        ClientConnectionManager connections = transport.getHttpClient().getConnectionManager();
+        evictIdle(connections);
+        if (connections instanceof ThreadSafeClientConnManager)
+            registerMetrics((ThreadSafeClientConnManager) connections);
+        return transport;
+    }
+
+    /**
+     * Every request gets the configured timeouts, the client's defaults would override the ones of the pool.
+     *
+     * @param credential can be null
+     */
+    static HttpRequestInitializer initializer(HttpRequestInitializer credential, Config.Transport config) {
+        return request -> {
+            if (credential != null)
+                credential.initialize(request);
+            request.setConnectTimeout(config.connectTimeout);
+            request.setReadTimeout(config.readTimeout);
+        };
+    }
+
+    private static void evictIdle(ClientConnectionManager connections) {
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "calendar-transport");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(() -> {
+            connections.closeExpiredConnections();
+            connections.closeIdleConnections(IDLE, TimeUnit.SECONDS);
+        }, IDLE, IDLE, TimeUnit.SECONDS);
+    }
+
+    private static void registerMetrics(ThreadSafeClientConnManager connections) {
+        MetricRegistry metrics = Service.metrics;
+        metrics.register(MetricRegistry.name(CalendarTransport.class, "connections"),
+                (Gauge<Integer>) connections::getConnectionsInPool);
+        for (String host : HOSTS) {
+            HttpRoute route = new HttpRoute(new HttpHost(host, HTTPS, "https"), null, true);
+            metrics.register(MetricRegistry.name(CalendarTransport.class, "connections", host),
+                    (Gauge<Integer>) () -> connections.getConnectionsInPool(route));
+        }
+    }
+}
@@ -1,34 +1,64 @@
 package com.wire.bots.cali;
 
-import com.wire.bots.sdk.WireClient;
 import com.wire.bots.sdk.tools.Logger;
-import org.ocpsoft.prettytime.nlp.PrettyTimeParser;
-import org.ocpsoft.prettytime.nlp.parse.DateGroup;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CallScheduler {
+    private static final int LOADERS = 4;
+    // schedules used to be stored as Date.toString()
+    private static final String LEGACY_FORMAT = "EEE MMM dd HH:mm:ss zzz yyyy";
     private final Timer timer = new Timer();
-    private static final PrettyTimeParser prettyTimeParser = new PrettyTimeParser(TimeZone.getTimeZone("CET"));
+    private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("CET");
     private final Database database;
 
-    CallScheduler(Config.DB postgres) {
+    CallScheduler(Config.Postgres postgres) {
         this.database = new Database(postgres);
     }
 
+    /**
+     * Streams the upcoming schedules in one query and rehydrates them in parallel. Legacy text schedules are parsed
+     * once and written back as scheduledAt.
+     */
     void loadSchedules() throws Exception {
-        ArrayList<String> subscribers = database.getSubscribers();
-        for (String botId : subscribers) {
-            String schedule = database.getSchedule(botId);
-            if (schedule != null) {
-                Date date = parse(schedule);
-                if (date != null) {
-                    boolean scheduled = schedule(botId, date);
-                    if (scheduled) {
-                        Logger.info("Loaded Scheduled call for: `%s`, bot: %s", date, botId);
-                    }
+        final AtomicInteger loaded = new AtomicInteger();
+        // the bounded queue makes the cursor wait for the loaders
+        ThreadPoolExecutor loaders = new ThreadPoolExecutor(LOADERS, LOADERS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(LOADERS * 64), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            database.streamSchedules(System.currentTimeMillis(), (botId, scheduledAt, legacy) -> loaders.execute(() -> {
+                try {
+                    Date date = scheduledAt != null ? new Date(scheduledAt) : parseLegacy(legacy);
+                    if (date == null)
+                        return;
+
+                    if (scheduledAt == null)
+                        database.setSchedule(botId, date.getTime());
+
+                    if (schedule(botId, date))
+                        loaded.incrementAndGet();
+                } catch (Exception e) {
+                    Logger.warning("loadSchedules: bot: %s, error: %s", botId, e);
                 }
-            }
+            }));
+        } finally {
+            loaders.shutdown();
+            loaders.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        Logger.info("Loaded %d scheduled calls", loaded.get());
+    }
+
+    private static Date parseLegacy(String schedule) {
+        try {
+            return new SimpleDateFormat(LEGACY_FORMAT, Locale.US).parse(schedule);
+        } catch (ParseException e) {
+            return parse(schedule);
         }
     }
 
@@ -39,9 +69,10 @@ public class CallScheduler {
         timer.schedule(new TimerTask() {
             @Override
             public void run() {
-                try (WireClient wireClient = Service.repo.getClient(botId)) {
-                    wireClient.call("{\"version\":\"3.0\",\"type\":\"GROUPSTART\",\"sessid\":\"\",\"resp\":false}");
-                    deleteSchedule(wireClient.getId());
+                try {
+                    Service.outbox.send(botId, wireClient ->
+                            wireClient.call("{\"version\":\"3.0\",\"type\":\"GROUPSTART\",\"sessid\":\"\",\"resp\":false}"));
+                    deleteSchedule(botId);
                 } catch (Exception e) {
                     Logger.warning("schedule. Bot: %s, scheduled: `%s`, error: %s",
                             botId,
@@ -81,17 +112,12 @@ public class CallScheduler {
 //    }
 
     static Date parse(String schedule) {
-        List<DateGroup> dateGroups = prettyTimeParser.parseSyntax(schedule);
-        for (DateGroup dateGroup : dateGroups) {
-            for (Date date : dateGroup.getDates()) {
-                return date;
-            }
-        }
-        return null;
+        DateParser.Result result = DateParser.parse(schedule, TIME_ZONE);
+        return result != null ? result.getDate() : null;
     }
 
-    void saveSchedule(String botId, String text) throws Exception {
-        boolean setSchedule = database.setSchedule(botId, text);
+    void saveSchedule(String botId, Date date) throws Exception {
+        boolean setSchedule = database.setSchedule(botId, date.getTime());
         Logger.info("Set schedule for bot: %s %s", botId, setSchedule);
     }
 
@@ -0,0 +1,83 @@
+package com.wire.bots.cali;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.wire.bots.sdk.tools.Logger;
+
+import java.util.concurrent.*;
+
+/**
+ * Runs the commands off the SDK's message thread. The commands of a bot run one after the other in the order they
+ * arrived, different bots run concurrently. Virtual threads are used when the runtime has them, a fixed pool
+ * otherwise. At most maxInFlight commands are queued or running, further ones are rejected.
+ */
+class CommandExecutor {
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final Histogram queueWait;
+    private final Histogram execution;
+    private final Meter rejected;
+
+    CommandExecutor(Config.Commands config) {
+        this.executor = newExecutor(config.threads);
+        this.inFlight = new Semaphore(config.maxInFlight);
+
+        MetricRegistry metrics = Service.metrics;
+        queueWait = metrics.histogram(MetricRegistry.name(CommandExecutor.class, "queueWait"));
+        execution = metrics.histogram(MetricRegistry.name(CommandExecutor.class, "execution"));
+        rejected = metrics.meter(MetricRegistry.name(CommandExecutor.class, "rejected"));
+        metrics.register(MetricRegistry.name(CommandExecutor.class, "inFlight"),
+                (Gauge<Integer>) () -> config.maxInFlight - inFlight.availablePermits());
+    }
+
+    /**
+     * @return false when too many commands are in flight and this one was not accepted
+     */
+    boolean submit(String botId, Runnable command) {
+        if (!inFlight.tryAcquire()) {
+            rejected.mark();
+            return false;
+        }
+
+        final long queued = System.currentTimeMillis();
+        Runnable task = () -> {
+            long start = System.currentTimeMillis();
+            queueWait.update(start - queued);
+            try {
+                command.run();
+            } catch (Exception e) {
+                Logger.warning("CommandExecutor: %s error: %s", botId, e);
+            } finally {
+                execution.update(System.currentTimeMillis() - start);
+                inFlight.release();
+            }
+        };
+
+        // chained after the previous command of the bot, the tail is dropped once nothing follows it
+        CompletableFuture<Void> tail = tails.compute(botId, (k, previous) -> previous == null
+                ? CompletableFuture.runAsync(task, executor)
+                : previous.exceptionally(e -> null).thenRunAsync(task, executor));
+        tail.whenComplete((v, e) -> tails.remove(botId, tail));
+        return true;
+    }
+
+    /**
+     * @return the bots with commands queued or running
+     */
+    int bots() {
+        return tails.size();
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        try {
+            // Java 21+, looked up so that we still build for Java 8
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Logger.info("CommandExecutor: no virtual threads, using %d platform threads", threads);
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+}
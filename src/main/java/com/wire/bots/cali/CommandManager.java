@@ -2,8 +2,6 @@ package com.wire.bots.cali;
 
 import com.google.api.client.util.DateTime;
 import com.google.api.services.calendar.model.Event;
-import com.google.api.services.calendar.model.EventDateTime;
-import com.google.api.services.calendar.model.Events;
 import com.wire.bots.sdk.WireClient;
 import com.wire.bots.sdk.assets.Picture;
 import com.wire.bots.sdk.models.AssetKey;
@@ -28,11 +26,16 @@ class CommandManager {
     private static final String COMMAND_MUTE = "/mute";
     private static final String COMMAND_UNMUTE = "/unmute";
     private static final String COMMAND_HELP = "/help";
+    private static final String RECONNECT = "I have lost access to your calendar. Follow this link to connect me again.";
 
     private final CallScheduler callScheduler;
+    private final CalendarTimeZones timeZones;
+    private final CredentialHealth health;
 
     CommandManager() {
         this.callScheduler = new CallScheduler(Service.CONFIG.getPostgres());
+        this.timeZones = new CalendarTimeZones(Service.CONFIG.getPostgres());
+        this.health = new CredentialHealth(Service.CONFIG.getPostgres());
         try {
             callScheduler.loadSchedules();
         } catch (Exception e) {
@@ -41,33 +44,51 @@ class CommandManager {
     }
 
     void processCommand(WireClient client, String sender, String command) throws Exception {
-        command = command.toLowerCase().trim();
+        // the user waits for these Calendar calls, they go ahead of the polling
+        CalendarQuota.setInteractive(true);
+        try {
+            command = command.toLowerCase().trim();
+            // no Google call for a bot whose credential stopped working
+            if (usesCalendar(command) && !health.available(client.getId())) {
+                reconnect(client, sender);
+                return;
+            }
+            process(client, sender, command);
+        } catch (Exception e) {
+            if (!health.onError(client.getId(), e))
+                throw e;
+            reconnect(client, sender);
+        } finally {
+            CalendarQuota.setInteractive(false);
+        }
+    }
 
+    private void process(WireClient client, String sender, String command) throws Exception {
         if (command.startsWith(COMMAND_LIST)) {
             String args = command.replace(COMMAND_LIST, "").trim();
             int maxResults = parseInt(args, 5);
-            Events events = CalendarAPI.listEvents(client.getId(), maxResults);
-            if (events.getItems().isEmpty()) {
-                client.sendDirectText(NO_EVENTS_SCHEDULED_SO_FAR, sender);
+            CalendarEvent.Page events = CalendarAPI.listEvents(client.getId(), maxResults);
+            if (events.isEmpty()) {
+                replyDirect(client, NO_EVENTS_SCHEDULED_SO_FAR, sender);
             } else {
                 String msg = printEvents(events, "Here are your upcoming events:");
-                client.sendDirectText(msg, sender);
+                replyDirect(client, msg, sender);
             }
         } else if (command.equals(COMMAND_TODAY)) {
-            Events events = listEventsToday(client.getId());
-            if (events.getItems().isEmpty()) {
-                client.sendDirectText(NO_EVENTS_SCHEDULED_SO_FAR, sender);
+            CalendarEvent.Page events = listEventsToday(client.getId());
+            if (events.isEmpty()) {
+                replyDirect(client, NO_EVENTS_SCHEDULED_SO_FAR, sender);
             } else {
                 String msg = printEvents(events, "Today’s events:");
-                client.sendDirectText(msg, sender);
+                replyDirect(client, msg, sender);
             }
         } else if (command.equals(COMMAND_TOMORROW)) {
-            Events events = listEventsTomorrow(client.getId());
-            if (events.getItems().isEmpty()) {
-                client.sendDirectText(NO_EVENTS_SCHEDULED_SO_FAR, sender);
+            CalendarEvent.Page events = listEventsTomorrow(client.getId());
+            if (events.isEmpty()) {
+                replyDirect(client, NO_EVENTS_SCHEDULED_SO_FAR, sender);
             } else {
                 String msg = printEvents(events, "Tomorrow’s events:");
-                client.sendDirectText(msg, sender);
+                replyDirect(client, msg, sender);
             }
         } else if (command.startsWith(COMMAND_POLLY)) {
             String args = command.replace(COMMAND_POLLY, "").trim();
@@ -84,6 +105,18 @@ class CommandManager {
         }
     }
 
+    private static boolean usesCalendar(String command) {
+        return command.startsWith(COMMAND_LIST)
+                || command.equals(COMMAND_TODAY)
+                || command.equals(COMMAND_TOMORROW)
+                || command.startsWith(COMMAND_CALI);
+    }
+
+    private void reconnect(WireClient client, String userId) {
+        reply(client, RECONNECT);
+        showAuthLink(client, userId);
+    }
+
     private void showHelp(WireClient client, String sender) throws Exception {
         String msg = "Here's the list of my controls:\n" +
                 "\n" +
@@ -98,7 +131,7 @@ class CommandManager {
                 "—\n" +
                 "By the way, commands only work when placed at the beginning of a message.\n" +
                 "Make sure there is no space between the ”/“ character and the command.";
-        client.sendDirectText(msg, sender);
+        replyDirect(client, msg, sender);
     }
 
     private void setMute(WireClient client, boolean muted) throws Exception {
@@ -107,10 +140,10 @@ class CommandManager {
             if (muted) {
                 String msg = "Notifications about your events are now **off**. \n" +
                         "If you want to turn them back on, type: `/unmute` .";
-                client.sendText(msg);
+                reply(client, msg);
             } else {
                 String msg = "Notifications about your events are now **on**.";
-                client.sendText(msg);
+                reply(client, msg);
             }
         } else {
             Logger.warning("Failed to invoke setMute: %s", client.getId());
@@ -118,17 +151,24 @@ class CommandManager {
     }
 
     void showAuthLink(WireClient client, User origin) throws Exception {
+        showAuthLink(client, origin.id);
+    }
+
+    private void showAuthLink(WireClient client, String userId) {
         try {
             String authUrl = CalendarAPI.getAuthUrl(client.getId());
-            Picture preview = uploadPreview(client);
-            client.sendDirectLinkPreview(authUrl, "Sign in - Google Accounts", preview, origin.id);
+            // a failed send does not upload the preview again
+            Picture[] preview = new Picture[1];
+            Service.outbox.send(client.getId(),
+                    c -> preview[0] = uploadPreview(c),
+                    c -> c.sendDirectLinkPreview(authUrl, "Sign in - Google Accounts", preview[0], userId));
         } catch (Exception e) {
             Logger.error("showAuthLink: bot: %s error: %s", client.getId(), e);
-            client.sendText("Something went wrong :(.");
+            reply(client, "Something went wrong :(.");
         }
     }
 
-    private Events listEventsToday(String botId) throws IOException {
+    private CalendarEvent.Page listEventsToday(String botId) throws IOException {
         Date end = new Date(System.currentTimeMillis());
         end.setHours(23);
         end.setMinutes(59);
@@ -136,7 +176,7 @@ class CommandManager {
         return CalendarAPI.listEvents(botId, new DateTime(System.currentTimeMillis()), new DateTime(end));
     }
 
-    private Events listEventsTomorrow(String botId) throws IOException {
+    private CalendarEvent.Page listEventsTomorrow(String botId) throws IOException {
         Date start = new Date(System.currentTimeMillis());
         start.setDate(start.getDate() + 1);
         start.setHours(0);
@@ -162,13 +202,15 @@ class CommandManager {
 
     private void scheduleNewEvent(WireClient client, String args) throws Exception {
         try {
-            Event event = CalendarAPI.addEvent(client.getId(), args);
+            String botId = client.getId();
+            Event event = CalendarAPI.addEvent(botId, args, timeZones.get(botId));
             if (event == null) {
-                client.sendText("Sorry, I did not get that.");
+                reply(client, "Sorry, I did not get that.");
                 return;
             }
 
             DateFormat format = new SimpleDateFormat("EEEEE, dd MMMMM 'at' HH:mm");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
             DateTime dateTime = event.getStart().getDateTime();
             long value = dateTime.getValue() + TimeUnit.MINUTES.toMillis(dateTime.getTimeZoneShift());
             String s = String.format("I've created new event for you:\n" +
@@ -176,10 +218,13 @@ class CommandManager {
                     event.getSummary(),
                     format.format(new Date(value)),
                     event.getHtmlLink());
-            client.sendText(s);
+            reply(client, s);
         } catch (Exception e) {
+            // processCommand answers these with the link to sign in again
+            if (CredentialHealth.isCredentialError(e))
+                throw e;
             Logger.warning("scheduleNewEvent: %s", e.getMessage());
-            client.sendText("Something went wrong :(.");
+            reply(client, "Something went wrong :(.");
         }
     }
 
@@ -192,18 +237,26 @@ class CommandManager {
 
             boolean scheduled = callScheduler.schedule(botId, date);
             if (scheduled) {
-                String schedule = date.toString();
-                callScheduler.saveSchedule(botId, schedule);
-                client.sendText("OK, I will start the call here at: " + format.format(date));
-                Logger.info("Scheduled call for: `%s`, bot: %s", schedule, botId);
+                callScheduler.saveSchedule(botId, date);
+                reply(client, "OK, I will start the call here at: " + format.format(date));
+                Logger.info("Scheduled call for: `%s`, bot: %s", date, botId);
             } else {
-                client.sendText("I am sorry, but I could not schedule the call for: " + format.format(date));
+                reply(client, "I am sorry, but I could not schedule the call for: " + format.format(date));
             }
         } else {
-            client.sendText("I am sorry, I could not parse that.");
+            reply(client, "I am sorry, I could not parse that.");
         }
     }
 
+    // replies go through the outbox so a slow backend does not hold up the handler
+    private static void reply(WireClient client, String text) {
+        Service.outbox.send(client.getId(), c -> c.sendText(text));
+    }
+
+    private static void replyDirect(WireClient client, String text, String userId) {
+        Service.outbox.send(client.getId(), c -> c.sendDirectText(text, userId));
+    }
+
     private Picture uploadPreview(WireClient client) throws Exception {
         Picture preview = new Picture(PREVIEW_PIC_URL);
         preview.setPublic(true);
@@ -213,18 +266,15 @@ class CommandManager {
         return preview;
     }
 
-    private String printEvents(Events events, String title) {
+    private String printEvents(CalendarEvent.Page events, String title) {
         final DateFormat format = new SimpleDateFormat("EEEEE, dd MMMMM 'at' HH:mm");
+        // the events are printed as wall clock time of the zone they were given in
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
         final StringBuilder sb = new StringBuilder(title);
 
         sb.append("\n\n");
-        for (Event event : events.getItems()) {
-            EventDateTime eventStart = event.getStart();
-            DateTime start = eventStart.getDateTime();
-            long value = start != null
-                    ? start.getValue() + TimeUnit.MINUTES.toMillis(start.getTimeZoneShift())
-                    : eventStart.getDate().getValue();
-            sb.append(String.format("[%s](%s)\n%s\n—\n", event.getSummary(), event.getHtmlLink(), format.format(new Date(value))));
+        for (CalendarEvent event : events.items) {
+            sb.append(String.format("[%s](%s)\n%s\n—\n", event.summary, event.htmlLink, format.format(new Date(event.localStart()))));
         }
         return sb.toString();
     }
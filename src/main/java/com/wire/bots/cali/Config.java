@@ -28,8 +28,15 @@ public class Config extends Configuration {
     public int portMin;
     public int portMax;
     public String module;
-    public DB postgres;
-    
+    public Postgres postgres;
+    public Polling polling = new Polling();
+    public Transport transport = new Transport();
+    public Outbox outbox = new Outbox();
+    public Quota quota = new Quota();
+    public Commands commands = new Commands();
+    // millis credential writes are coalesced before they go to Redis, 0 writes through
+    public long credentialsWriteBehind;
+
     public String getSecretPath() {
         return secretPath;
     }
@@ -50,7 +57,93 @@ public class Config extends Configuration {
         return module;
     }
 
-    public DB getPostgres() {
+    public Postgres getPostgres() {
         return postgres;
     }
+
+    public long getCredentialsWriteBehind() {
+        return credentialsWriteBehind;
+    }
+
+    public Polling getPolling() {
+        return polling;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+    public Quota getQuota() {
+        return quota;
+    }
+
+    public Commands getCommands() {
+        return commands;
+    }
+
+    public static class Postgres extends DB {
+        public int maxPoolSize = 16;
+        public int minIdle = 4;
+        // millis a caller waits for a free connection
+        public long connectionTimeout = 5000;
+        public int prepareThreshold = 1;
+        public int preparedStatementCacheQueries = 256;
+    }
+
+    public static class Polling {
+        public int threads = 8;
+        // minutes between two polls of a quiet calendar, also how often the subscribers are reconciled
+        public int period = 15;
+        // minutes between two polls of a calendar with a reminder coming up or that just changed
+        public int minPeriod = 1;
+        // subscribers are split into this many shards, replicas poll the shards they hold a lease on
+        public int shards = 64;
+        // seconds, renewed every third
+        public int lease = 30;
+    }
+
+    public static class Transport {
+        // pooled connections to Google
+        public int maxConnections = 64;
+        // millis
+        public int connectTimeout = 5000;
+        public int readTimeout = 20000;
+    }
+
+    public static class Outbox {
+        public int threads = 8;
+        // messages queued per conversation
+        public int capacity = 100;
+        public int attempts = 5;
+        // millis before the first retry, doubled for every further one
+        public long backoff = 1000;
+        public long maxBackoff = 30000;
+    }
+
+    public static class Quota {
+        // Calendar requests per second for the whole project and per bot. The project's rate and burst are split
+        // evenly between the live replicas
+        public double projectRate = 20;
+        public double projectBurst = 200;
+        public double botRate = 5;
+        public double botBurst = 20;
+        // part of the project's burst only interactive commands may use
+        public double reserve = 0.2;
+        // millis a request waits for admission before it fails
+        public long maxWait = 10000;
+        // millis a bucket is paused after a quota error, doubled for every further one
+        public long backoff = 1000;
+        public long maxBackoff = 60000;
+    }
+
+    public static class Commands {
+        // platform threads when the runtime has no virtual threads
+        public int threads = 16;
+        // commands queued or running at once
+        public int maxInFlight = 256;
+    }
 }
@@ -0,0 +1,123 @@
+package com.wire.bots.cali;
+
+import com.google.api.client.auth.oauth2.TokenResponseException;
+import com.google.api.client.http.HttpResponseException;
+import com.wire.bots.sdk.tools.Logger;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whether the bot's Google credential still works. A bot whose calls fail with 401, or whose refresh token is
+ * rejected, is suspended for a while that doubles with every further failure. After DORMANT_AFTER failures in a
+ * row it is left alone until the user signs in again. The state is kept in the Cali table and read from the
+ * {@link SubscriberCache}, so the check costs a map lookup and survives restarts.
+ */
+class CredentialHealth {
+    enum State {
+        HEALTHY,
+        SUSPENDED,
+        DORMANT
+    }
+
+    private static final long BACKOFF = TimeUnit.MINUTES.toMillis(15);
+    private static final long MAX_BACKOFF = TimeUnit.DAYS.toMillis(1);
+    private static final int DORMANT_AFTER = 8;
+    private static final int UNAUTHORIZED = 401;
+    private static final int SERVER_ERROR = 500;
+
+    private final Database database;
+
+    CredentialHealth(Config.Postgres postgres) {
+        this.database = new Database(postgres);
+    }
+
+    /**
+     * @return false while the bot is suspended or dormant, no Google call should be made for it
+     */
+    boolean available(String botId) {
+        try {
+            SubscriberCache.Subscriber subscriber = database.getSubscriber(botId);
+            return subscriber == null || available(subscriber, System.currentTimeMillis());
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    private static boolean available(SubscriberCache.Subscriber subscriber, long now) {
+        if (subscriber.authState == State.HEALTHY)
+            return true;
+        return subscriber.authState == State.SUSPENDED && subscriber.authRetryAt <= now;
+    }
+
+    boolean isDormant(String botId) {
+        try {
+            SubscriberCache.Subscriber subscriber = database.getSubscriber(botId);
+            return subscriber != null && subscriber.authState == State.DORMANT;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Records the outcome of a Google call, only credential errors count.
+     *
+     * @return true when the error was one
+     */
+    boolean onError(String botId, Throwable error) {
+        if (!isCredentialError(error))
+            return false;
+
+        try {
+            // one revocation fails the poller, the verifier and a command at once, it counts once per suspension
+            long now = System.currentTimeMillis();
+            SubscriberCache.Subscriber subscriber = database.getSubscriber(botId);
+            if (subscriber != null && !available(subscriber, now))
+                return true;
+
+            SubscriberCache.Subscriber updated = database.addAuthFailure(botId, now, BACKOFF, MAX_BACKOFF,
+                    DORMANT_AFTER);
+            if (updated == null)
+                return true;
+            if (updated.authState == State.DORMANT)
+                Logger.info("CredentialHealth: %s dormant after %d failures", botId, updated.authFailures);
+            else
+                Logger.info("CredentialHealth: %s suspended for %d minutes", botId,
+                        TimeUnit.MILLISECONDS.toMinutes(updated.authRetryAt - now));
+        } catch (Exception e) {
+            Logger.warning("CredentialHealth.onError: %s %s", botId, e);
+        }
+        return true;
+    }
+
+    /**
+     * A call went through, a suspended bot is healthy again. Only writes on a change of state.
+     */
+    void succeeded(String botId) {
+        try {
+            SubscriberCache.Subscriber subscriber = database.getSubscriber(botId);
+            if (subscriber != null && (subscriber.authState != State.HEALTHY || subscriber.authFailures != 0))
+                database.setAuth(botId, State.HEALTHY, 0, 0);
+        } catch (Exception e) {
+            Logger.warning("CredentialHealth.succeeded: %s %s", botId, e);
+        }
+    }
+
+    int count(State state) {
+        try {
+            return database.countAuthState(state);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    static boolean isCredentialError(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null)
+            error = error.getCause();
+        // invalid_grant when the refresh token was revoked
+        if (error instanceof TokenResponseException)
+            return ((TokenResponseException) error).getStatusCode() < SERVER_ERROR;
+        return error instanceof HttpResponseException
+                && ((HttpResponseException) error).getStatusCode() == UNAUTHORIZED;
+    }
+}
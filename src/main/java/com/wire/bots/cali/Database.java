@@ -1,78 +1,264 @@
 package com.wire.bots.cali;
 
-import com.wire.bots.sdk.Configuration;
+import com.google.api.services.calendar.model.Channel;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.UUID;
 
+/**
+ * Reads of the subscriber settings are served from the {@link SubscriberCache}, writes go to Postgres and notify
+ * every replica so that they can refresh their copy.
+ */
 class Database {
-    private final Configuration.DB conf;
+    private static final int FETCH_SIZE = 1000;
+    private static final Object POOL_LOCK = new Object();
+    private static volatile HikariDataSource dataSource;
+    private static final Object CACHE_LOCK = new Object();
+    private static volatile SubscriberCache cache;
+    private final Config.Postgres conf;
 
-    Database(Configuration.DB postgres) {
+    Database(Config.Postgres postgres) {
         this.conf = postgres;
     }
 
     boolean insertSubscriber(String botId) throws Exception {
-        try (Connection c = newConnection()) {
-            PreparedStatement stmt = c.prepareStatement("INSERT INTO Cali (botId) VALUES (?) ON CONFLICT (botId) DO NOTHING");
+        try (Connection c = newConnection();
+             PreparedStatement stmt = c.prepareStatement("INSERT INTO Cali (botId) VALUES (?) ON CONFLICT (botId) DO NOTHING")) {
             stmt.setObject(1, UUID.fromString(botId));
-            return stmt.executeUpdate() == 1;
+            boolean inserted = stmt.executeUpdate() == 1;
+            if (inserted) {
+                cache().put(new SubscriberCache.Subscriber(botId, false, null));
+                notify(c, botId);
+            }
+            return inserted;
         }
     }
 
     ArrayList<String> getSubscribers() throws Exception {
-        ArrayList<String> ret = new ArrayList<>();
+        return cache().getBotIds();
+    }
+
+    /**
+     * @param scheduledAt epoch millis of the scheduled call, null to delete it. Also clears the legacy text schedule
+     */
+    boolean setSchedule(String botId, Long scheduledAt) throws Exception {
+        try (Connection c = newConnection();
+             PreparedStatement stmt = c.prepareStatement("UPDATE Cali set scheduledAt = ?, schedule = NULL WHERE botId = ?")) {
+            if (scheduledAt != null)
+                stmt.setLong(1, scheduledAt);
+            else
+                stmt.setNull(1, Types.BIGINT);
+            stmt.setObject(2, UUID.fromString(botId));
+            boolean updated = stmt.executeUpdate() == 1;
+            if (updated) {
+                cache().update(botId, subscriber -> subscriber.withSchedule(scheduledAt));
+                notify(c, botId);
+            }
+            return updated;
+        }
+    }
+
+    /**
+     * Streams the schedules due after `after` through a server side cursor, together with the legacy rows that
+     * still only have the text schedule (scheduledAt is null for those).
+     */
+    void streamSchedules(long after, ScheduleHandler handler) throws SQLException {
         try (Connection c = newConnection()) {
-            PreparedStatement stmt = c.prepareStatement("SELECT botId FROM Cali");
-            ResultSet resultSet = stmt.executeQuery();
+            // pgjdbc only fetches in batches inside a transaction
+            c.setAutoCommit(false);
+            try (PreparedStatement stmt = c.prepareStatement("SELECT botId, scheduledAt, schedule FROM Cali " +
+                    "WHERE scheduledAt > ? OR (scheduledAt IS NULL AND schedule IS NOT NULL)")) {
+                stmt.setFetchSize(FETCH_SIZE);
+                stmt.setLong(1, after);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    while (resultSet.next()) {
+                        String botId = resultSet.getString("botId");
+                        long scheduledAt = resultSet.getLong("scheduledAt");
+                        Long at = resultSet.wasNull() ? null : scheduledAt;
+                        handler.onSchedule(botId, at, resultSet.getString("schedule"));
+                    }
+                }
+            } finally {
+                c.commit();
+            }
+        }
+    }
+
+    boolean setMuted(String botId, boolean value) throws Exception {
+        try (Connection c = newConnection();
+             PreparedStatement stmt = c.prepareStatement("UPDATE Cali set muted = ? WHERE botId = ?")) {
+            stmt.setBoolean(1, value);
+            stmt.setObject(2, UUID.fromString(botId));
+            boolean updated = stmt.executeUpdate() == 1;
+            if (updated) {
+                cache().update(botId, subscriber -> subscriber.withMuted(value));
+                notify(c, botId);
+            }
+            return updated;
+        }
+    }
+
+    boolean isMuted(String botId) throws SQLException {
+        SubscriberCache.Subscriber subscriber = cache().get(botId);
+        return subscriber != null && subscriber.muted;
+    }
+
+    SubscriberCache.Subscriber getSubscriber(String botId) throws SQLException {
+        return cache().get(botId);
+    }
+
+    boolean setTimeZone(String botId, String timeZone) throws SQLException {
+        long now = System.currentTimeMillis();
+        try (Connection c = newConnection();
+             PreparedStatement stmt = c.prepareStatement("UPDATE Cali set timeZone = ?, timeZoneUpdated = ? WHERE botId = ?")) {
+            stmt.setString(1, timeZone);
+            stmt.setLong(2, now);
+            stmt.setObject(3, UUID.fromString(botId));
+            boolean updated = stmt.executeUpdate() == 1;
+            if (updated) {
+                cache().update(botId, subscriber -> subscriber.withTimeZone(timeZone, now));
+                notify(c, botId);
+            }
+            return updated;
+        }
+    }
+
+    boolean setAuth(String botId, CredentialHealth.State state, int failures, long retryAt) throws SQLException {
+        try (Connection c = newConnection();
+             PreparedStatement stmt = c.prepareStatement("UPDATE Cali set authState = ?, authFailures = ?, authRetryAt = ? WHERE botId = ?")) {
+            stmt.setString(1, state.name());
+            stmt.setInt(2, failures);
+            stmt.setLong(3, retryAt);
+            stmt.setObject(4, UUID.fromString(botId));
+            boolean updated = stmt.executeUpdate() == 1;
+            if (updated) {
+                cache().update(botId, subscriber -> subscriber.withAuth(state, failures, retryAt));
+                notify(c, botId);
+            }
+            return updated;
+        }
+    }
+
+    /**
+     * Counts a credential failure in one statement, so concurrent failures cannot lose or double an increment.
+     * Failures of a dormant bot or of one whose suspension has not run out yet are not counted.
+     *
+     * @return the bot after the update, null when the failure was not counted
+     */
+    SubscriberCache.Subscriber addAuthFailure(String botId, long now, long backoff, long maxBackoff, int dormantAfter)
+            throws SQLException {
+        try (Connection c = newConnection();
+             PreparedStatement stmt = c.prepareStatement("UPDATE Cali SET " +
+                     "authFailures = authFailures + 1, " +
+                     "authState = CASE WHEN authFailures + 1 >= ? THEN 'DORMANT' ELSE 'SUSPENDED' END, " +
+                     "authRetryAt = CASE WHEN authFailures + 1 >= ? THEN 0 " +
+                     "ELSE (? + LEAST(?, ? * power(2, authFailures)))::bigint END " +
+                     "WHERE botId = ? AND (authState IS NULL OR authState = 'HEALTHY' " +
+                     "OR (authState = 'SUSPENDED' AND authRetryAt <= ?)) " +
+                     "RETURNING authState, authFailures, authRetryAt")) {
+            stmt.setInt(1, dormantAfter);
+            stmt.setInt(2, dormantAfter);
+            stmt.setLong(3, now);
+            stmt.setLong(4, maxBackoff);
+            stmt.setLong(5, backoff);
+            stmt.setObject(6, UUID.fromString(botId));
+            stmt.setLong(7, now);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (!resultSet.next())
+                    return null;
+                CredentialHealth.State state = CredentialHealth.State.valueOf(resultSet.getString("authState"));
+                int failures = resultSet.getInt("authFailures");
+                long retryAt = resultSet.getLong("authRetryAt");
+                cache().update(botId, subscriber -> subscriber.withAuth(state, failures, retryAt));
+                notify(c, botId);
+                return cache().get(botId);
+            }
+        }
+    }
+
+    int countAuthState(CredentialHealth.State state) throws SQLException {
+        return cache().count(subscriber -> subscriber.authState == state);
+    }
+
+    HashMap<String, SubscriberCache.Subscriber> loadSubscribers() throws SQLException {
+        HashMap<String, SubscriberCache.Subscriber> ret = new HashMap<>();
+        try (Connection c = newConnection();
+             PreparedStatement stmt = c.prepareStatement("SELECT botId, muted, scheduledAt, timeZone, timeZoneUpdated, authState, authFailures, authRetryAt, channelExpiration FROM Cali");
+             ResultSet resultSet = stmt.executeQuery()) {
             while (resultSet.next()) {
-                ret.add(resultSet.getString("botId"));
+                SubscriberCache.Subscriber subscriber = subscriber(resultSet);
+                ret.put(subscriber.botId, subscriber);
             }
         }
         return ret;
     }
 
-    boolean setSchedule(String botId, String schedule) throws Exception {
-        try (Connection c = newConnection()) {
-            PreparedStatement stmt = c.prepareStatement("UPDATE Cali set schedule = ? WHERE botId = ?");
-            stmt.setString(1, schedule);
-            stmt.setObject(2, UUID.fromString(botId));
-            return stmt.executeUpdate() == 1;
+    SubscriberCache.Subscriber loadSubscriber(String botId) throws SQLException {
+        try (Connection c = newConnection();
+             PreparedStatement stmt = c.prepareStatement("SELECT botId, muted, scheduledAt, timeZone, timeZoneUpdated, authState, authFailures, authRetryAt, channelExpiration FROM Cali WHERE botId = ?")) {
+            stmt.setObject(1, UUID.fromString(botId));
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (resultSet.next()) {
+                    return subscriber(resultSet);
+                }
+            }
         }
+        return null;
     }
 
-    String getSchedule(String botId) throws SQLException {
-        try (Connection c = newConnection()) {
-            PreparedStatement stmt = c.prepareStatement("SELECT schedule FROM Cali WHERE botId = ?");
+    String getSyncToken(String botId) throws SQLException {
+        try (Connection c = newConnection();
+             PreparedStatement stmt = c.prepareStatement("SELECT syncToken FROM Cali WHERE botId = ?")) {
             stmt.setObject(1, UUID.fromString(botId));
-            ResultSet resultSet = stmt.executeQuery();
-            if (resultSet.next()) {
-                return resultSet.getString("schedule");
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (resultSet.next()) {
+                    return resultSet.getString("syncToken");
+                }
             }
         }
         return null;
     }
 
-    boolean setMuted(String botId, boolean value) throws Exception {
-        try (Connection c = newConnection()) {
-            PreparedStatement stmt = c.prepareStatement("UPDATE Cali set muted = ? WHERE botId = ?");
-            stmt.setBoolean(1, value);
+    boolean setSyncToken(String botId, String syncToken) throws SQLException {
+        try (Connection c = newConnection();
+             PreparedStatement stmt = c.prepareStatement("UPDATE Cali set syncToken = ? WHERE botId = ?")) {
+            stmt.setString(1, syncToken);
             stmt.setObject(2, UUID.fromString(botId));
             return stmt.executeUpdate() == 1;
         }
     }
 
-    boolean isMuted(String botId) throws SQLException {
-        try (Connection c = newConnection()) {
-            PreparedStatement stmt = c.prepareStatement("SELECT muted FROM Cali WHERE botId = ?");
-            stmt.setObject(1, UUID.fromString(botId));
-            ResultSet resultSet = stmt.executeQuery();
-            if (resultSet.next()) {
-                return resultSet.getBoolean("muted");
+    /**
+     * Records the bot's new push channel.
+     *
+     * @return the channel it replaces, null if there was none
+     */
+    Channel setChannel(String botId, Channel channel) throws SQLException {
+        long expiration = channel.getExpiration() != null ? channel.getExpiration() : 0;
+        try (Connection c = newConnection();
+             PreparedStatement stmt = c.prepareStatement("UPDATE Cali c SET channelId = ?, channelResource = ?, channelExpiration = ? " +
+                     "FROM (SELECT channelId, channelResource FROM Cali WHERE botId = ? FOR UPDATE) old " +
+                     "WHERE c.botId = ? RETURNING old.channelId, old.channelResource")) {
+            stmt.setString(1, channel.getId());
+            stmt.setString(2, channel.getResourceId());
+            stmt.setLong(3, expiration);
+            stmt.setObject(4, UUID.fromString(botId));
+            stmt.setObject(5, UUID.fromString(botId));
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (!resultSet.next())
+                    return null;
+                cache().update(botId, subscriber -> subscriber.withChannel(expiration));
+                notify(c, botId);
+                String previous = resultSet.getString("channelId");
+                return previous != null
+                        ? new Channel().setId(previous).setResourceId(resultSet.getString("channelResource"))
+                        : null;
             }
         }
-        return false;
     }
 
     boolean deleteSchedule(String botId) throws Exception {
@@ -80,15 +266,97 @@ class Database {
     }
 
     boolean unsubscribe(String botId) throws SQLException {
-        try (Connection c = newConnection()) {
-            PreparedStatement stmt = c.prepareStatement("DELETE FROM Cali WHERE botId = ?");
+        try (Connection c = newConnection();
+             PreparedStatement stmt = c.prepareStatement("DELETE FROM Cali WHERE botId = ?")) {
             stmt.setObject(1, UUID.fromString(botId));
-            return stmt.executeUpdate() == 1;
+            boolean deleted = stmt.executeUpdate() == 1;
+            if (deleted) {
+                cache().remove(botId);
+                notify(c, botId);
+            }
+            return deleted;
+        }
+    }
+
+    private static SubscriberCache.Subscriber subscriber(ResultSet resultSet) throws SQLException {
+        String botId = resultSet.getString("botId");
+        boolean muted = resultSet.getBoolean("muted");
+        long scheduledAt = resultSet.getLong("scheduledAt");
+        Long at = resultSet.wasNull() ? null : scheduledAt;
+        String authState = resultSet.getString("authState");
+        return new SubscriberCache.Subscriber(botId, muted, at,
+                resultSet.getString("timeZone"), resultSet.getLong("timeZoneUpdated"),
+                authState != null ? CredentialHealth.State.valueOf(authState) : CredentialHealth.State.HEALTHY,
+                resultSet.getInt("authFailures"), resultSet.getLong("authRetryAt"),
+                resultSet.getLong("channelExpiration"));
+    }
+
+    private static void notify(Connection c, String botId) throws SQLException {
+        try (PreparedStatement stmt = c.prepareStatement("SELECT pg_notify(?, ?)")) {
+            stmt.setString(1, SubscriberCache.CHANNEL);
+            stmt.setString(2, botId);
+            stmt.execute();
         }
     }
 
     private Connection newConnection() throws SQLException {
-        String url = String.format("jdbc:postgresql://%s:%d/%s", conf.host, conf.port, conf.database);
-        return DriverManager.getConnection(url, conf.user, conf.password);
+        return dataSource(conf).getConnection();
+    }
+
+    private SubscriberCache cache() throws SQLException {
+        SubscriberCache ret = cache;
+        if (ret != null)
+            return ret;
+
+        // not the dataSource lock, the first load needs a connection
+        synchronized (CACHE_LOCK) {
+            if (cache == null) {
+                SubscriberCache subscriberCache = new SubscriberCache(this, conf);
+                try {
+                    subscriberCache.start();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException(e);
+                }
+                cache = subscriberCache;
+            }
+            return cache;
+        }
+    }
+
+    interface ScheduleHandler {
+        void onSchedule(String botId, Long scheduledAt, String legacySchedule);
+    }
+
+    private static HikariDataSource dataSource(Config.Postgres conf) {
+        // every query comes through here, only the first ones take the lock
+        HikariDataSource ret = dataSource;
+        if (ret != null)
+            return ret;
+
+        synchronized (POOL_LOCK) {
+            if (dataSource != null)
+                return dataSource;
+
+            HikariConfig config = new HikariConfig();
+            config.setPoolName("cali");
+            config.setJdbcUrl(String.format("jdbc:postgresql://%s:%d/%s", conf.host, conf.port, conf.database));
+            config.setUsername(conf.user);
+            config.setPassword(conf.password);
+            config.setMaximumPoolSize(conf.maxPoolSize);
+            config.setMinimumIdle(conf.minIdle);
+            config.setConnectionTimeout(conf.connectionTimeout);
+
+            // pgjdbc keeps server side prepared statements per connection, so with pooled connections
+            // every query here gets parsed and planned once per connection instead of once per call
+            config.addDataSourceProperty("prepareThreshold", conf.prepareThreshold);
+            config.addDataSourceProperty("preparedStatementCacheQueries", conf.preparedStatementCacheQueries);
+
+            // pool.Wait, pool.ActiveConnections, pool.IdleConnections, ...
+            config.setMetricRegistry(Service.metrics);
+
+            dataSource = new HikariDataSource(config);
+            return dataSource;
+        }
     }
 }
@@ -0,0 +1,107 @@
+package com.wire.bots.cali;
+
+import org.ocpsoft.prettytime.nlp.PrettyTimeParser;
+import org.ocpsoft.prettytime.nlp.parse.DateGroup;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Natural language dates for the commands. The common phrasings are handled by {@link FastDateParser}, the rest by
+ * PrettyTime. PrettyTimeParser is expensive to build (grammar, resource bundles) and not thread safe, so warmed
+ * parsers are pooled per time zone and borrowed for one parse. Results are memoized per phrase within the same
+ * minute, relative phrases like "in 5 minutes" can therefore be up to a minute early.
+ */
+class DateParser {
+    private static final int POOL_SIZE = 4;
+    private static final int MEMO_SIZE = 1024;
+    private static final long BUCKET = TimeUnit.MINUTES.toMillis(1);
+    private static final String WARM_UP = "tomorrow at 9:00";
+    private static final Result NONE = new Result(0, null, false);
+
+    private static final ConcurrentHashMap<String, BlockingQueue<PrettyTimeParser>> pools = new ConcurrentHashMap<>();
+    private static final LinkedHashMap<String, Result> memo = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            return size() > MEMO_SIZE;
+        }
+    };
+
+    /**
+     * @return the first date found in the text, null if there is none
+     */
+    static Result parse(String text, TimeZone timeZone) {
+        text = text.trim();
+        long now = System.currentTimeMillis();
+        long time = FastDateParser.parse(text, now, timeZone);
+        if (time != FastDateParser.NO_MATCH)
+            return new Result(time, text, false);
+
+        long bucket = now / BUCKET;
+        String key = timeZone.getID() + '|' + bucket + '|' + text;
+
+        Result result;
+        synchronized (memo) {
+            result = memo.get(key);
+        }
+        if (result == null) {
+            result = parseSyntax(text, timeZone);
+            synchronized (memo) {
+                memo.put(key, result);
+            }
+        }
+        return result != NONE ? result : null;
+    }
+
+    private static Result parseSyntax(String text, TimeZone timeZone) {
+        BlockingQueue<PrettyTimeParser> pool = pools.computeIfAbsent(timeZone.getID(),
+                k -> new ArrayBlockingQueue<>(POOL_SIZE));
+        PrettyTimeParser parser = pool.poll();
+        if (parser == null)
+            parser = newParser(timeZone);
+
+        try {
+            List<DateGroup> dateGroups = parser.parseSyntax(text);
+            for (DateGroup dateGroup : dateGroups) {
+                for (Date date : dateGroup.getDates()) {
+                    return new Result(date.getTime(), dateGroup.getText(), dateGroup.isRecurring());
+                }
+            }
+            return NONE;
+        } finally {
+            // dropped when the pool is full
+            pool.offer(parser);
+        }
+    }
+
+    private static PrettyTimeParser newParser(TimeZone timeZone) {
+        PrettyTimeParser parser = new PrettyTimeParser(timeZone);
+        // the grammar and the bundles are loaded lazily on the first parse
+        parser.parseSyntax(WARM_UP);
+        return parser;
+    }
+
+    static class Result {
+        private final long time;
+        // the part of the input that was recognized as the date
+        final String text;
+        final boolean recurring;
+
+        private Result(long time, String text, boolean recurring) {
+            this.time = time;
+            this.text = text;
+            this.recurring = recurring;
+        }
+
+        Date getDate() {
+            return new Date(time);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.wire.bots.cali;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.wire.bots.sdk.Configuration;
+import com.wire.bots.sdk.tools.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reminders that were sent, kept in Redis until their event starts so that neither a restart nor another replica
+ * sends them again. A reminder is identified by the bot, the event, its start and the minutes before it, so a
+ * moved event or a changed reminder is a new one.
+ */
+class DeliveryLedger {
+    private static final String PREFIX = "cali_sent_";
+    // the key has to outlive the send even when the event starts right away
+    private static final long MIN_TTL = TimeUnit.MINUTES.toMillis(5);
+    // 1 when this call claimed the reminder, 0 when it was claimed before
+    private static final String CLAIM = "if redis.call('set', KEYS[1], '1', 'NX', 'PX', ARGV[1]) then return 1 " +
+            "else return 0 end";
+
+    private final Configuration.DB db;
+    private final Meter duplicates;
+
+    DeliveryLedger(Configuration.DB db) {
+        this.db = db;
+        this.duplicates = Service.metrics.meter(MetricRegistry.name(DeliveryLedger.class, "duplicates"));
+    }
+
+    static String key(String botId, String eventId, long start, int minutes) {
+        return String.format("%s%s-%s-%d-%d", PREFIX, botId, eventId, start, minutes);
+    }
+
+    /**
+     * Records the reminder right before it is sent.
+     *
+     * @return false when it was sent already. True when Redis could not be reached, a duplicate is better than a
+     * lost reminder
+     */
+    boolean claim(String key, long start) {
+        long ttl = Math.max(MIN_TTL, start - System.currentTimeMillis());
+        try (Jedis jedis = RedisPool.getConnection(db)) {
+            Object ret = jedis.eval(CLAIM, Collections.singletonList(key),
+                    Collections.singletonList(Long.toString(ttl)));
+            if (Long.valueOf(1).equals(ret))
+                return true;
+            duplicates.mark();
+            return false;
+        } catch (Exception e) {
+            Logger.warning("DeliveryLedger.claim: %s error: %s", key, e);
+            return true;
+        }
+    }
+
+    /**
+     * Gives a claim back when the reminder could not be sent, so that a retry can claim it again.
+     */
+    void release(String key) {
+        try (Jedis jedis = RedisPool.getConnection(db)) {
+            jedis.del(key);
+        } catch (Exception e) {
+            Logger.warning("DeliveryLedger.release: %s error: %s", key, e);
+        }
+    }
+
+    /**
+     * One pipelined round trip for a page of reminders.
+     *
+     * @return the keys that were sent already, empty when Redis could not be reached
+     */
+    Set<String> delivered(List<String> keys) {
+        HashSet<String> ret = new HashSet<>();
+        if (keys.isEmpty())
+            return ret;
+
+        try (Jedis jedis = RedisPool.getConnection(db)) {
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Boolean>> exists = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                exists.add(pipeline.exists(key));
+            }
+            pipeline.sync();
+
+            for (int i = 0; i < keys.size(); i++) {
+                if (Boolean.TRUE.equals(exists.get(i).get()))
+                    ret.add(keys.get(i));
+            }
+        } catch (Exception e) {
+            Logger.warning("DeliveryLedger.delivered: error: %s", e);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,277 @@
+package com.wire.bots.cali;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.ObjectParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reads events.get and events.list responses with the Jackson streaming parser straight into {@link CalendarEvent}s,
+ * without the GenericJson maps of the generated model. Only the fields in {@link EventFields} are read, anything
+ * else is skipped.
+ */
+class EventDecoder {
+    private static final JsonFactory FACTORY = new JsonFactory();
+    private static final int[] NONE = new int[0];
+
+    /**
+     * For batch parts: decodes CalendarEvents, everything else (the error bodies) goes to the default parser. A part
+     * without a body, a 304, is parsed to null.
+     */
+    static final ObjectParser PARSER = new ObjectParser() {
+        private final ObjectParser json = JacksonFactory.getDefaultInstance().createJsonObjectParser();
+
+        @Override
+        public <T> T parseAndClose(InputStream in, Charset charset, Class<T> dataClass) throws IOException {
+            if (dataClass == CalendarEvent.class)
+                return dataClass.cast(decodeEvent(in));
+            PushbackInputStream body = new PushbackInputStream(in);
+            int first = body.read();
+            if (first == -1) {
+                body.close();
+                return null;
+            }
+            body.unread(first);
+            return json.parseAndClose(body, charset, dataClass);
+        }
+
+        @Override
+        public Object parseAndClose(InputStream in, Charset charset, Type dataType) throws IOException {
+            if (dataType == CalendarEvent.class)
+                return decodeEvent(in);
+            return json.parseAndClose(in, charset, dataType);
+        }
+
+        @Override
+        public <T> T parseAndClose(Reader reader, Class<T> dataClass) throws IOException {
+            return json.parseAndClose(reader, dataClass);
+        }
+
+        @Override
+        public Object parseAndClose(Reader reader, Type dataType) throws IOException {
+            return json.parseAndClose(reader, dataType);
+        }
+    };
+
+    static CalendarEvent decodeEvent(InputStream in) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            expect(parser, JsonToken.START_OBJECT);
+            return event(parser);
+        }
+    }
+
+    static CalendarEvent.Page decodeEvents(InputStream in) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            expect(parser, JsonToken.START_OBJECT);
+
+            ArrayList<CalendarEvent> items = new ArrayList<>();
+            int[] defaultReminders = null;
+            String nextPageToken = null;
+            String nextSyncToken = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                    case "items":
+                        if (token != JsonToken.START_ARRAY)
+                            break;
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            items.add(event(parser));
+                        }
+                        break;
+                    case "defaultReminders":
+                        if (token == JsonToken.START_ARRAY)
+                            defaultReminders = reminders(parser);
+                        break;
+                    case "nextPageToken":
+                        nextPageToken = parser.getText();
+                        break;
+                    case "nextSyncToken":
+                        nextSyncToken = parser.getText();
+                        break;
+                    default:
+                        skip(parser, token);
+                }
+            }
+            return new CalendarEvent.Page(items.toArray(new CalendarEvent[0]), defaultReminders != null
+                    ? defaultReminders : NONE, nextPageToken, nextSyncToken);
+        }
+    }
+
+    // positioned on the START_OBJECT of the event, returns on its END_OBJECT
+    private static CalendarEvent event(JsonParser parser) throws IOException {
+        String id = null;
+        String etag = null;
+        String status = null;
+        String summary = null;
+        String htmlLink = null;
+        String date = null;
+        String dateTime = null;
+        boolean recurring = false;
+        int[] reminders = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            switch (field) {
+                case "id":
+                    id = parser.getText();
+                    break;
+                case "etag":
+                    etag = parser.getText();
+                    break;
+                case "status":
+                    status = parser.getText();
+                    break;
+                case "summary":
+                    summary = parser.getText();
+                    break;
+                case "htmlLink":
+                    htmlLink = parser.getText();
+                    break;
+                case "start":
+                    if (token != JsonToken.START_OBJECT)
+                        break;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String name = parser.getCurrentName();
+                        JsonToken value = parser.nextToken();
+                        if ("dateTime".equals(name))
+                            dateTime = parser.getText();
+                        else if ("date".equals(name))
+                            date = parser.getText();
+                        else
+                            skip(parser, value);
+                    }
+                    break;
+                case "reminders":
+                    if (token != JsonToken.START_OBJECT)
+                        break;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        JsonToken value = parser.nextToken();
+                        if ("overrides".equals(parser.getCurrentName()) && value == JsonToken.START_ARRAY)
+                            reminders = reminders(parser);
+                        else
+                            skip(parser, value);
+                    }
+                    break;
+                case "recurrence":
+                    recurring = token == JsonToken.START_ARRAY;
+                    skip(parser, token);
+                    break;
+                default:
+                    skip(parser, token);
+            }
+        }
+
+        long start = CalendarEvent.NO_START;
+        int shift = 0;
+        if (dateTime != null) {
+            start = Rfc3339.parse(dateTime);
+            shift = Rfc3339.offsetMinutes(dateTime);
+        } else if (date != null) {
+            start = Rfc3339.parse(date);
+        }
+        return new CalendarEvent(id, etag, status, summary, htmlLink, start, shift, dateTime == null && date != null,
+                recurring, reminders);
+    }
+
+    // [{"method": "popup", "minutes": 10}, ...] -> minutes
+    private static int[] reminders(JsonParser parser) throws IOException {
+        int[] ret = new int[4];
+        int size = 0;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            int minutes = -1;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                JsonToken value = parser.nextToken();
+                if ("minutes".equals(parser.getCurrentName()))
+                    minutes = parser.getIntValue();
+                else
+                    skip(parser, value);
+            }
+            if (minutes < 0)
+                continue;
+            if (size == ret.length)
+                ret = Arrays.copyOf(ret, size * 2);
+            ret[size++] = minutes;
+        }
+        return size == ret.length ? ret : Arrays.copyOf(ret, size);
+    }
+
+    private static void skip(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY)
+            parser.skipChildren();
+    }
+
+    private static void expect(JsonParser parser, JsonToken expected) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token != expected)
+            throw new IOException(String.format("EventDecoder: expected %s, got %s", expected, token));
+    }
+
+    /**
+     * RFC 3339 as Google sends it: 2018-05-04T10:00:00+02:00, 2018-05-04T08:00:00.000Z or a date only 2018-05-04.
+     */
+    static class Rfc3339 {
+        static long parse(String s) throws IOException {
+            try {
+                long days = daysFromCivil(number(s, 0, 4), number(s, 5, 2), number(s, 8, 2));
+                if (s.length() == 10)
+                    return days * 86400000L;
+
+                int seconds = number(s, 11, 2) * 3600 + number(s, 14, 2) * 60 + number(s, 17, 2);
+                int millis = 0;
+                int i = 19;
+                if (i < s.length() && s.charAt(i) == '.') {
+                    int scale = 100;
+                    while (++i < s.length() && Character.isDigit(s.charAt(i))) {
+                        millis += (s.charAt(i) - '0') * scale;
+                        scale /= 10;
+                    }
+                }
+                return (days * 86400L + seconds - offsetMinutes(s) * 60L) * 1000L + millis;
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                throw new IOException("EventDecoder: bad date " + s);
+            }
+        }
+
+        static int offsetMinutes(String s) {
+            char c = s.charAt(s.length() - 1);
+            if (s.length() == 10 || c == 'Z' || c == 'z')
+                return 0;
+            int i = s.length() - 6;
+            int minutes = number(s, i + 1, 2) * 60 + number(s, i + 4, 2);
+            return s.charAt(i) == '-' ? -minutes : minutes;
+        }
+
+        private static int number(String s, int from, int digits) {
+            int ret = 0;
+            for (int i = from; i < from + digits; i++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9')
+                    throw new NumberFormatException(s);
+                ret = ret * 10 + c - '0';
+            }
+            return ret;
+        }
+
+        // days since 1970-01-01 of a proleptic Gregorian date
+        private static long daysFromCivil(int y, int m, int d) {
+            y -= m <= 2 ? 1 : 0;
+            int era = (y >= 0 ? y : y - 399) / 400;
+            int yoe = y - era * 400;
+            int doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+            int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+            return era * 146097L + doe - 719468;
+        }
+    }
+}
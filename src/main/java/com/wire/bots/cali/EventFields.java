@@ -0,0 +1,26 @@
+package com.wire.bots.cali;
+
+/**
+ * Partial response masks for the Calendar calls, so that we do not download descriptions, attendees, conference
+ * data and such. Every call sends one of these as `fields`. A field missing here reads as null, so a new reader of
+ * the Event has to add what it needs.
+ */
+class EventFields {
+    // reminders: scheduling, the fire time checks and the reminder message
+    static final String EVENT = "id,etag,status,summary,htmlLink,start,reminders";
+    // sync also has to tell recurring events apart
+    static final String CHANGED_EVENT = EVENT + ",recurrence";
+    // polling and /list
+    static final String UPCOMING = "defaultReminders,items(" + EVENT + ")";
+    // /today and /tomorrow
+    static final String LISTED = "items(summary,htmlLink,start)";
+    static final String CHANGES = "defaultReminders,nextPageToken,nextSyncToken,items(" + CHANGED_EVENT + ")";
+    // first sync, only the token is needed
+    static final String SYNC_TOKEN = "nextPageToken,nextSyncToken";
+    // the confirmation of /cali
+    static final String CREATED = "summary,htmlLink,start";
+    static final String SETTING = "value";
+
+    private EventFields() {
+    }
+}
@@ -0,0 +1,138 @@
+package com.wire.bots.cali;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.google.api.client.googleapis.batch.BatchCallback;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fire time check of the events. Reminders cluster around the full and the half hour, so the events.get calls of
+ * the reminders that fire within the same short window are sent as Google batch requests, one HTTP round trip for
+ * up to 50 of them. Every part carries the credential of its own bot.
+ * <p>
+ * A lone reminder is sent as a plain GET. Either way the gets are conditional on the etag of the snapshot, an
+ * unchanged event comes back as a 304 without a body and the snapshot is used.
+ */
+class EventVerifier {
+    private static final long WINDOW = 250;
+    private static final int MAX_BATCH = 50;
+
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final Executor executor;
+    private final Histogram batchSize;
+
+    EventVerifier(Executor executor) {
+        this.executor = executor;
+        this.batchSize = Service.metrics.histogram(MetricRegistry.name(EventVerifier.class, "batchSize"));
+    }
+
+    /**
+     * @return the current version of the event, completes exceptionally when it could not be fetched
+     */
+    CompletableFuture<CalendarEvent> verify(String botId, CalendarEvent snapshot) {
+        Pending pending = new Pending(botId, snapshot);
+        queue.add(pending);
+        if (scheduled.compareAndSet(false, true))
+            timer.schedule(this::flush, WINDOW, TimeUnit.MILLISECONDS);
+        return pending.future;
+    }
+
+    private void flush() {
+        scheduled.set(false);
+
+        List<Pending> window = new ArrayList<>();
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            window.add(pending);
+        }
+
+        if (window.size() == 1) {
+            Pending single = window.get(0);
+            executor.execute(() -> get(single));
+            return;
+        }
+
+        for (int i = 0; i < window.size(); i += MAX_BATCH) {
+            List<Pending> parts = window.subList(i, Math.min(i + MAX_BATCH, window.size()));
+            executor.execute(() -> batch(parts));
+        }
+    }
+
+    private void get(Pending pending) {
+        try {
+            pending.future.complete(CalendarAPI.getEvent(pending.botId, pending.snapshot));
+        } catch (Exception e) {
+            pending.future.completeExceptionally(e);
+        }
+    }
+
+    private void batch(List<Pending> parts) {
+        BatchRequest batch = CalendarAPI.newBatch();
+        for (Pending pending : parts) {
+            try {
+                CalendarAPI.queueGetEvent(batch, pending.botId, pending.snapshot, pending);
+            } catch (Exception e) {
+                pending.future.completeExceptionally(e);
+            }
+        }
+
+        try {
+            if (batch.size() > 0) {
+                batchSize.update(batch.size());
+                batch.execute();
+            }
+        } catch (Exception e) {
+            for (Pending pending : parts) {
+                pending.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static class Pending implements BatchCallback<CalendarEvent, GoogleJsonErrorContainer> {
+        final String botId;
+        final CalendarEvent snapshot;
+        final CompletableFuture<CalendarEvent> future = new CompletableFuture<>();
+
+        Pending(String botId, CalendarEvent snapshot) {
+            this.botId = botId;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public void onSuccess(CalendarEvent event, HttpHeaders responseHeaders) {
+            future.complete(event);
+        }
+
+        @Override
+        public void onFailure(GoogleJsonErrorContainer container, HttpHeaders responseHeaders) {
+            // Google's errors all carry a body, only the 304 of a conditional get has none
+            if (container == null && snapshot.etag != null) {
+                future.complete(snapshot);
+                return;
+            }
+            GoogleJsonError error = container != null ? container.getError() : null;
+            if (error == null) {
+                future.completeExceptionally(new IOException("batch part failed"));
+                return;
+            }
+            CalendarAPI.onBatchError(botId, error);
+            // with the status code, so credential errors are told apart like those of single calls
+            HttpResponseException.Builder builder = new HttpResponseException.Builder(error.getCode(),
+                    error.getMessage(), responseHeaders);
+            future.completeExceptionally(new GoogleJsonResponseException(builder, error));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.wire.bots.cali;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single pass recognizer for the phrasings most commands use, in front of PrettyTime:
+ * <pre>
+ *     in 30 minutes, in 2 hours
+ *     tomorrow at 9:00, today at 18:00, friday at 18:00
+ *     18:00, at 18:00
+ * </pre>
+ * The whole text has to be one of these (case and extra spaces aside), anything else is left to PrettyTime. So are
+ * the cases where PrettyTime's reading is not obvious: a weekday that is today and a bare time that has passed.
+ */
+class FastDateParser {
+    static final long NO_MATCH = Long.MIN_VALUE;
+    // index + 1 is Calendar.DAY_OF_WEEK
+    private static final String[] DAYS = {"sunday", "monday", "tuesday", "wednesday", "thursday", "friday", "saturday"};
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * @return epoch millis or NO_MATCH
+     */
+    static long parse(String text, long now, TimeZone timeZone) {
+        int end = text.length();
+        while (end > 0 && text.charAt(end - 1) == ' ')
+            end--;
+        int pos = skipSpaces(text, 0, end);
+
+        int p = word(text, pos, end, "in");
+        if (p != -1)
+            return relative(text, p, end, now);
+
+        int dayOfWeek = 0;
+        boolean tomorrow = false;
+        boolean day = true;
+        if ((p = word(text, pos, end, "tomorrow")) != -1) {
+            tomorrow = true;
+        } else if ((p = word(text, pos, end, "today")) == -1) {
+            for (int i = 0; i < DAYS.length && p == -1; i++) {
+                p = word(text, pos, end, DAYS[i]);
+                dayOfWeek = i + 1;
+            }
+            if (p == -1) {
+                day = false;
+                dayOfWeek = 0;
+                p = pos;
+            }
+        }
+
+        if (day) {
+            p = word(text, p, end, "at");
+            if (p == -1)
+                return NO_MATCH;
+        } else {
+            int at = word(text, p, end, "at");
+            if (at != -1)
+                p = at;
+        }
+
+        // H:MM or HH:MM up to the end
+        int hours = 0;
+        int digits = 0;
+        while (p < end && digits < 2 && isDigit(text.charAt(p))) {
+            hours = hours * 10 + text.charAt(p++) - '0';
+            digits++;
+        }
+        if (digits == 0 || hours > 23 || p + 3 != end || text.charAt(p) != ':'
+                || !isDigit(text.charAt(p + 1)) || !isDigit(text.charAt(p + 2)))
+            return NO_MATCH;
+        int minutes = (text.charAt(p + 1) - '0') * 10 + text.charAt(p + 2) - '0';
+        if (minutes > 59)
+            return NO_MATCH;
+
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(now);
+        if (tomorrow) {
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        } else if (dayOfWeek != 0) {
+            int days = (dayOfWeek - calendar.get(Calendar.DAY_OF_WEEK) + 7) % 7;
+            if (days == 0)
+                return NO_MATCH;
+            calendar.add(Calendar.DAY_OF_MONTH, days);
+        }
+        calendar.set(Calendar.HOUR_OF_DAY, hours);
+        calendar.set(Calendar.MINUTE, minutes);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        long ret = calendar.getTimeInMillis();
+        return day || ret >= now ? ret : NO_MATCH;
+    }
+
+    // N minute(s)|hour(s) up to the end
+    private static long relative(String text, int p, int end, long now) {
+        int n = 0;
+        int digits = 0;
+        while (p < end && digits < 4 && isDigit(text.charAt(p))) {
+            n = n * 10 + text.charAt(p++) - '0';
+            digits++;
+        }
+        if (digits == 0 || n == 0 || p == end || text.charAt(p) != ' ')
+            return NO_MATCH;
+        p = skipSpaces(text, p, end);
+
+        if (rest(text, p, end, "minutes") || rest(text, p, end, n == 1 ? "minute" : "minutes"))
+            return now + n * MINUTE;
+        if (rest(text, p, end, "hours") || rest(text, p, end, n == 1 ? "hour" : "hours"))
+            return now + n * HOUR;
+        return NO_MATCH;
+    }
+
+    /**
+     * @return position after the word and the spaces that follow it, -1 when the word is not at pos or is not
+     * followed by a space
+     */
+    private static int word(String text, int pos, int end, String word) {
+        int p = pos + word.length();
+        if (p >= end || text.charAt(p) != ' ' || !text.regionMatches(true, pos, word, 0, word.length()))
+            return -1;
+        return skipSpaces(text, p, end);
+    }
+
+    private static boolean rest(String text, int pos, int end, String word) {
+        return end - pos == word.length() && text.regionMatches(true, pos, word, 0, word.length());
+    }
+
+    private static int skipSpaces(String text, int pos, int end) {
+        while (pos < end && text.charAt(pos) == ' ')
+            pos++;
+        return pos;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -31,11 +31,13 @@ public class MessageHandler extends MessageHandlerBase {
     //private final ConcurrentHashMap<String, Blender> blenders = new ConcurrentHashMap<>();
     private final AlertManager alertManager;
     private final CommandManager commandManager;
+    private final CommandExecutor commands;
 
     MessageHandler(AlertManager alertManager, CommandManager commandManager, StorageFactory storageF) {
         this.storageF = storageF;
         this.alertManager = alertManager;
         this.commandManager = commandManager;
+        this.commands = new CommandExecutor(Service.CONFIG.getCommands());
     }
 
     @Override
@@ -57,8 +59,9 @@ public class MessageHandler extends MessageHandlerBase {
     @Override
     public void onNewConversation(final WireClient client) {
         try {
-            client.sendText("Hello!\n" +
-                    "Thank you for adding me here. Follow this link to connect me to one of your calendars.");
+            // queued ahead of the link
+            Service.outbox.send(client.getId(), c -> c.sendText("Hello!\n" +
+                    "Thank you for adding me here. Follow this link to connect me to one of your calendars."));
             commandManager.showAuthLink(client, getOwner(client));
         } catch (Exception e) {
             Logger.warning("onNewConversation: %s %s", client.getId(), e);
@@ -84,10 +87,17 @@ public class MessageHandler extends MessageHandlerBase {
 
     @Override
     public void onText(WireClient client, TextMessage msg) {
-        try {
-            commandManager.processCommand(client, msg.getUserId(), msg.getText());
-        } catch (Exception e) {
-            Logger.warning("onText: %s %s", client.getId(), e);
+        String botId = client.getId();
+        boolean accepted = commands.submit(botId, () -> {
+            try {
+                commandManager.processCommand(client, msg.getUserId(), msg.getText());
+            } catch (Exception e) {
+                Logger.warning("onText: %s %s", botId, e);
+            }
+        });
+        if (!accepted) {
+            Logger.warning("onText: %s too many commands in flight", botId);
+            Service.outbox.send(botId, c -> c.sendText("I am a bit busy right now, please try again in a moment."));
         }
     }
 
@@ -0,0 +1,174 @@
+package com.wire.bots.cali;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.wire.bots.sdk.WireClient;
+import com.wire.bots.sdk.exceptions.HttpException;
+import com.wire.bots.sdk.tools.Logger;
+
+import javax.ws.rs.ProcessingException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outgoing messages. Every conversation has its own bounded queue that is drained by one worker of the shared pool
+ * at a time, so the messages to a conversation go out in order while a slow backend response only holds up its own
+ * conversation. A message that failed on a transient error, an I/O error or a 5xx/429 from the backend, is retried
+ * with exponential backoff before the ones queued behind it are sent. Other errors, like a 4xx for a bot that was
+ * removed from the conversation, fail the message right away.
+ * <p>
+ * A message can take several steps, a ping and the text of a reminder. A retry resumes at the step that failed.
+ * <p>
+ * The client is acquired when the message is sent, the one of the caller may be closed by then.
+ */
+class Outbox {
+    interface Delivery {
+        void send(WireClient client) throws Exception;
+    }
+
+    interface Clients {
+        WireClient getClient(String botId) throws Exception;
+    }
+
+    private static final int REQUEST_TIMEOUT = 408;
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int SERVER_ERROR = 500;
+
+    private final ConcurrentHashMap<String, Conversation> conversations = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService workers;
+    private final Config.Outbox config;
+    private final Clients clients;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Timer delivery;
+    private final Meter retried;
+    private final Meter dropped;
+    private final Meter failed;
+
+    Outbox(Config.Outbox config) {
+        this(config, botId -> Service.repo.getClient(botId));
+    }
+
+    Outbox(Config.Outbox config, Clients clients) {
+        this.config = config;
+        this.clients = clients;
+        this.workers = Executors.newFixedThreadPool(config.threads);
+
+        MetricRegistry metrics = Service.metrics;
+        this.delivery = metrics.timer(MetricRegistry.name(Outbox.class, "delivery"));
+        this.retried = metrics.meter(MetricRegistry.name(Outbox.class, "retries"));
+        this.dropped = metrics.meter(MetricRegistry.name(Outbox.class, "dropped"));
+        this.failed = metrics.meter(MetricRegistry.name(Outbox.class, "failed"));
+        metrics.register(MetricRegistry.name(Outbox.class, "pending"), (Gauge<Integer>) pending::get);
+        metrics.register(MetricRegistry.name(Outbox.class, "conversations"), (Gauge<Integer>) conversations::size);
+    }
+
+    /**
+     * @param steps sent one after the other
+     * @return false when the queue of the conversation is full and the message was dropped
+     */
+    boolean send(String botId, Delivery... steps) {
+        Message message = new Message(steps);
+        while (true) {
+            Conversation conversation = conversations.computeIfAbsent(botId, Conversation::new);
+            boolean start;
+            synchronized (conversation) {
+                // drained and removed in the meantime
+                if (conversation.closed)
+                    continue;
+                if (conversation.queue.size() >= config.capacity) {
+                    dropped.mark();
+                    Logger.warning("Outbox: %s queue full, message dropped", botId);
+                    return false;
+                }
+                conversation.queue.add(message);
+                pending.incrementAndGet();
+                start = !conversation.running;
+                conversation.running = true;
+            }
+            if (start)
+                workers.execute(() -> deliver(conversation));
+            return true;
+        }
+    }
+
+    private void deliver(Conversation conversation) {
+        Message message;
+        synchronized (conversation) {
+            message = conversation.queue.peek();
+        }
+
+        try (WireClient client = clients.getClient(conversation.botId)) {
+            if (client == null) {
+                failed.mark();
+                Logger.warning("Outbox: %s no client", conversation.botId);
+            } else {
+                for (; message.step < message.steps.length; message.step++) {
+                    message.steps[message.step].send(client);
+                    message.attempts = 0;
+                }
+                delivery.update(System.nanoTime() - message.queued, TimeUnit.NANOSECONDS);
+            }
+        } catch (Exception e) {
+            message.attempts++;
+            if (isTransient(e) && message.attempts < config.attempts) {
+                retried.mark();
+                long delay = Math.min(config.backoff << (message.attempts - 1), config.maxBackoff);
+                retries.schedule(() -> workers.execute(() -> deliver(conversation)), delay, TimeUnit.MILLISECONDS);
+                return;
+            }
+            failed.mark();
+            Logger.warning("Outbox: %s failed after %d attempts: %s", conversation.botId, message.attempts, e);
+        }
+
+        boolean more;
+        synchronized (conversation) {
+            conversation.queue.poll();
+            pending.decrementAndGet();
+            more = !conversation.queue.isEmpty();
+            if (!more) {
+                conversation.running = false;
+                conversation.closed = true;
+                conversations.remove(conversation.botId, conversation);
+            }
+        }
+        if (more)
+            workers.execute(() -> deliver(conversation));
+    }
+
+    static boolean isTransient(Throwable error) {
+        if (error instanceof HttpException) {
+            int code = ((HttpException) error).getCode();
+            return code >= SERVER_ERROR || code == TOO_MANY_REQUESTS || code == REQUEST_TIMEOUT;
+        }
+        return error instanceof IOException || error instanceof ProcessingException || error instanceof TimeoutException;
+    }
+
+    private static class Conversation {
+        final String botId;
+        final ArrayDeque<Message> queue = new ArrayDeque<>();
+        boolean running;
+        boolean closed;
+
+        Conversation(String botId) {
+            this.botId = botId;
+        }
+    }
+
+    private static class Message {
+        final Delivery[] steps;
+        final long queued = System.nanoTime();
+        // the step to send next
+        int step;
+        // failed attempts of the step
+        int attempts;
+
+        Message(Delivery[] steps) {
+            this.steps = steps;
+        }
+    }
+}
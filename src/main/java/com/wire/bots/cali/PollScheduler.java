@@ -0,0 +1,150 @@
+package com.wire.bots.cali;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Next poll time per bot, pollers take the bots from a priority queue when they are due. A bot is polled more often
+ * the closer its next reminder is and the more recently its calendar changed, quiet calendars are polled every
+ * `max` and the ones that keep failing back off up to a day. Bots without a live push channel are polled every
+ * `min`, polling is all that catches their changes.
+ */
+class PollScheduler {
+    static final long NONE = Long.MAX_VALUE;
+    private static final long FAILED_MAX = TimeUnit.DAYS.toMillis(1);
+    // spreads the bots that were throttled together
+    private static final long THROTTLED_JITTER = TimeUnit.SECONDS.toMillis(1);
+
+    private final DelayQueue<Due> queue = new DelayQueue<>();
+    // the queue can hold stale entries, only the one matching this time is polled
+    private final ConcurrentHashMap<String, Long> nextPoll = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> lastChanged = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> failures = new ConcurrentHashMap<>();
+    private final long min;
+    private final long max;
+
+    PollScheduler(long min, long max) {
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Adds the bots that are not scheduled yet and drops the ones that are gone. New bots are spread over the
+     * shortest interval: after a restart or a shard handover their reminders are only known once they were polled.
+     */
+    void sync(Collection<String> botIds, long now) {
+        for (String botId : botIds) {
+            if (!nextPoll.containsKey(botId))
+                schedule(botId, now + ThreadLocalRandom.current().nextLong(Math.max(1, min)));
+        }
+        HashSet<String> current = new HashSet<>(botIds);
+        nextPoll.keySet().retainAll(current);
+        lastChanged.keySet().retainAll(current);
+        failures.keySet().retainAll(current);
+    }
+
+    /**
+     * Blocks until a bot is due.
+     */
+    Due take() throws InterruptedException {
+        while (true) {
+            Due due = queue.take();
+            Long at = nextPoll.get(due.botId);
+            if (at != null && at == due.at)
+                return due;
+        }
+    }
+
+    /**
+     * After a successful poll.
+     *
+     * @param nextReminder the earliest upcoming reminder of the bot, NONE if it has none
+     * @param watched      whether changes of the bot's calendar are pushed to us
+     */
+    void polled(String botId, long nextReminder, long now, boolean watched) {
+        failures.remove(botId);
+        Long changed = lastChanged.get(botId);
+        long interval = watched ? interval(now, nextReminder, changed != null ? changed : 0, min, max) : min;
+        schedule(botId, now + interval);
+    }
+
+    /**
+     * The poll was held back by the Calendar quota. Not a failure of the bot, it is tried again once the quota
+     * admits it.
+     *
+     * @param delay millis until the quota admits the bot again
+     */
+    void throttled(String botId, long delay, long now) {
+        schedule(botId, now + delay + ThreadLocalRandom.current().nextLong(THROTTLED_JITTER));
+    }
+
+    void failed(String botId, long now) {
+        int failed = failures.merge(botId, 1, Integer::sum);
+        long interval = max << Math.min(failed, 16);
+        schedule(botId, now + Math.min(interval, FAILED_MAX));
+    }
+
+    /**
+     * The calendar changed, the bot is polled again within half the time since its previous change.
+     */
+    void changed(String botId, long now) {
+        Long previous = lastChanged.put(botId, now);
+        Long at = nextPoll.get(botId);
+        long next = now + interval(now, NONE, previous != null ? previous : 0, min, max);
+        if (at != null && next < at)
+            schedule(botId, next);
+    }
+
+    void remove(String botId) {
+        nextPoll.remove(botId);
+        lastChanged.remove(botId);
+        failures.remove(botId);
+    }
+
+    int size() {
+        return nextPoll.size();
+    }
+
+    private void schedule(String botId, long at) {
+        nextPoll.put(botId, at);
+        queue.add(new Due(botId, at));
+    }
+
+    /**
+     * Half the time to the next reminder, so a lost change is still caught before the reminder fires, and half the
+     * time since the last change, since calendars that changed recently tend to change again.
+     */
+    static long interval(long now, long nextReminder, long lastChanged, long min, long max) {
+        long interval = max;
+        if (nextReminder != NONE)
+            interval = Math.min(interval, (nextReminder - now) / 2);
+        if (lastChanged != 0)
+            interval = Math.min(interval, (now - lastChanged) / 2);
+        return Math.max(min, interval);
+    }
+
+    static class Due implements Delayed {
+        final String botId;
+        final long at;
+
+        Due(String botId, long at) {
+            this.botId = botId;
+            this.at = at;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(at - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(at, ((Due) o).at);
+        }
+    }
+}
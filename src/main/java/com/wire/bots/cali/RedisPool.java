@@ -0,0 +1,34 @@
+package com.wire.bots.cali;
+
+import com.wire.bots.sdk.Configuration;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Connections to the Redis in Config.db for the bot's own keys (leases, ledgers). The credential store keeps its
+ * own pool.
+ */
+class RedisPool {
+    private static final int TIMEOUT = 5000;
+    private static final int MAX_TOTAL = 32;
+    private static JedisPool pool;
+
+    static Jedis getConnection(Configuration.DB db) {
+        return pool(db).getResource();
+    }
+
+    private static synchronized JedisPool pool(Configuration.DB db) {
+        if (pool == null) {
+            JedisPoolConfig poolConfig = new JedisPoolConfig();
+            poolConfig.setMaxTotal(MAX_TOTAL);
+            poolConfig.setMaxIdle(MAX_TOTAL);
+            poolConfig.setTestOnBorrow(true);
+            poolConfig.setBlockWhenExhausted(true);
+
+            int port = db.port != null ? db.port : 6379;
+            pool = new JedisPool(poolConfig, db.host, port, TIMEOUT, db.password);
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,263 @@
+package com.wire.bots.cali;
+
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+
+/**
+ * Pending reminders by a 64 bit hash of bot, event and reminder index, ordered by fire time so the ones that fired
+ * are evicted. Entries live in parallel arrays addressed by a handle: an open addressing table maps the keys to the
+ * handles and a binary heap of handles keeps the fire times in order. Freed handles are reused.
+ */
+class ReminderIndex<T> {
+    private static final int EMPTY = -1;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // per handle
+    private long[] keys;
+    private long[] fireAt;
+    private Object[] values;
+    private int[] heapPos;
+    // handles, linear probing
+    private int[] table;
+    // handles, earliest fire time first
+    private int[] heap;
+    private int size;
+    // freed handles, chained through heapPos
+    private int free = EMPTY;
+    private int next;
+
+    ReminderIndex(int capacity) {
+        int cap = Integer.highestOneBit(Math.max(capacity, 8) - 1) << 1;
+        keys = new long[cap];
+        fireAt = new long[cap];
+        values = new Object[cap];
+        heapPos = new int[cap];
+        heap = new int[cap];
+        table = new int[cap * 2];
+        Arrays.fill(table, EMPTY);
+    }
+
+    static long key(String botId, String eventId, int index) {
+        long h = FNV_OFFSET;
+        h = hash(h, botId);
+        h = (h ^ '/') * FNV_PRIME;
+        h = hash(h, eventId);
+        h = (h ^ '/') * FNV_PRIME;
+        return (h ^ index) * FNV_PRIME;
+    }
+
+    private static long hash(long h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    synchronized T get(long key) {
+        int handle = find(key);
+        return handle == EMPTY ? null : value(handle);
+    }
+
+    /**
+     * Replaces the entry with what fn returns for the current one, null as argument when there is none. Returning
+     * null removes the entry.
+     *
+     * @param at fire time of the value fn returns
+     */
+    synchronized T compute(long key, long at, UnaryOperator<T> fn) {
+        int handle = find(key);
+        T previous = handle == EMPTY ? null : value(handle);
+        T value = fn.apply(previous);
+        if (value == null) {
+            if (handle != EMPTY)
+                delete(handle);
+        } else if (handle == EMPTY) {
+            insert(key, at, value);
+        } else {
+            values[handle] = value;
+            if (fireAt[handle] != at) {
+                fireAt[handle] = at;
+                siftUp(heapPos[handle]);
+                siftDown(heapPos[handle]);
+            }
+        }
+        return value;
+    }
+
+    synchronized T remove(long key) {
+        int handle = find(key);
+        if (handle == EMPTY)
+            return null;
+        T ret = value(handle);
+        delete(handle);
+        return ret;
+    }
+
+    /**
+     * Removes the entry only while it still maps to this value.
+     */
+    synchronized boolean remove(long key, T value) {
+        int handle = find(key);
+        if (handle == EMPTY || values[handle] != value)
+            return false;
+        delete(handle);
+        return true;
+    }
+
+    /**
+     * Drops the entries whose fire time has passed.
+     *
+     * @return the number of entries evicted
+     */
+    synchronized int evict(long now) {
+        int ret = 0;
+        while (size > 0 && fireAt[heap[0]] <= now) {
+            delete(heap[0]);
+            ret++;
+        }
+        return ret;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Bytes held by the index itself, the values are not counted.
+     */
+    synchronized long footprint() {
+        // key, fire time, heap position, heap slot and a compressed reference
+        long perHandle = Long.BYTES * 2 + Integer.BYTES * 2 + 4;
+        return keys.length * perHandle + (long) table.length * Integer.BYTES;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T value(int handle) {
+        return (T) values[handle];
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> 32) & (table.length - 1);
+    }
+
+    private int find(long key) {
+        int mask = table.length - 1;
+        for (int i = slot(key); table[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[table[i]] == key)
+                return table[i];
+        }
+        return EMPTY;
+    }
+
+    private void insert(long key, long at, T value) {
+        if (size == keys.length)
+            grow();
+
+        int handle;
+        if (free != EMPTY) {
+            handle = free;
+            free = heapPos[handle];
+        } else {
+            handle = next++;
+        }
+        keys[handle] = key;
+        fireAt[handle] = at;
+        values[handle] = value;
+
+        int mask = table.length - 1;
+        int i = slot(key);
+        while (table[i] != EMPTY)
+            i = (i + 1) & mask;
+        table[i] = handle;
+
+        heap[size] = handle;
+        heapPos[handle] = size;
+        size++;
+        siftUp(size - 1);
+    }
+
+    private void delete(int handle) {
+        // backward shift so no tombstones are left in the table
+        int mask = table.length - 1;
+        int i = slot(keys[handle]);
+        while (table[i] != handle)
+            i = (i + 1) & mask;
+        for (int j = (i + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(keys[table[j]]);
+            // move j into the hole at i unless its home lies cyclically in (i, j]
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = EMPTY;
+
+        int pos = heapPos[handle];
+        size--;
+        if (pos != size) {
+            int moved = heap[size];
+            heap[pos] = moved;
+            heapPos[moved] = pos;
+            siftUp(pos);
+            siftDown(heapPos[moved]);
+        }
+
+        values[handle] = null;
+        heapPos[handle] = free;
+        free = handle;
+    }
+
+    private void grow() {
+        int cap = keys.length * 2;
+        keys = Arrays.copyOf(keys, cap);
+        fireAt = Arrays.copyOf(fireAt, cap);
+        values = Arrays.copyOf(values, cap);
+        heapPos = Arrays.copyOf(heapPos, cap);
+        heap = Arrays.copyOf(heap, cap);
+
+        table = new int[cap * 2];
+        Arrays.fill(table, EMPTY);
+        int mask = table.length - 1;
+        for (int k = 0; k < size; k++) {
+            int handle = heap[k];
+            int i = slot(keys[handle]);
+            while (table[i] != EMPTY)
+                i = (i + 1) & mask;
+            table[i] = handle;
+        }
+    }
+
+    private void siftUp(int pos) {
+        int handle = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (fireAt[heap[parent]] <= fireAt[handle])
+                break;
+            heap[pos] = heap[parent];
+            heapPos[heap[pos]] = pos;
+            pos = parent;
+        }
+        heap[pos] = handle;
+        heapPos[handle] = pos;
+    }
+
+    private void siftDown(int pos) {
+        int handle = heap[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && fireAt[heap[child + 1]] < fireAt[heap[child]])
+                child++;
+            if (fireAt[handle] <= fireAt[heap[child]])
+                break;
+            heap[pos] = heap[child];
+            heapPos[heap[pos]] = pos;
+            pos = child;
+        }
+        heap[pos] = handle;
+        heapPos[handle] = pos;
+    }
+}
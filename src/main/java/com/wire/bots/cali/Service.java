@@ -18,6 +18,7 @@
 
 package com.wire.bots.cali;
 
+import com.codahale.metrics.MetricRegistry;
 import com.wire.bots.cali.resources.AuthResource;
 import com.wire.bots.cali.resources.NotificationResource;
 import com.wire.bots.sdk.ClientRepo;
@@ -33,6 +34,8 @@ import io.dropwizard.setup.Environment;
 public class Service extends Server<Config> {
     static Config CONFIG;
     static ClientRepo repo;
+    static MetricRegistry metrics;
+    static Outbox outbox;
     private AlertManager alertManager;
     private CommandManager commandManager;
 
@@ -49,17 +52,22 @@ public class Service extends Server<Config> {
     @Override
     protected void initialize(Config config, Environment env) {
         CONFIG = config;
+        metrics = env.metrics();
+        outbox = new Outbox(config.getOutbox());
         env.jersey().setUrlPattern("/cali/*");
 
-        alertManager = new AlertManager(config.postgres);
+        alertManager = new AlertManager(config.postgres, config.getPolling(), config.db);
         commandManager = new CommandManager();
     }
 
     @Override
     protected void onRun(Config config, Environment env) {
         Service.repo = super.repo;
+        CalendarSync calendarSync = new CalendarSync(alertManager, config.postgres);
         addResource(new AuthResource(repo), env);
-        addResource(new NotificationResource(repo), env);
+        addResource(new NotificationResource(repo, calendarSync), env);
+
+        alertManager.crone(repo);
     }
 
     @Override
@@ -0,0 +1,184 @@
+package com.wire.bots.cali;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.wire.bots.sdk.Configuration;
+import com.wire.bots.sdk.tools.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Splits the subscribers into shards that the replicas claim through renewable leases in Redis, so that every bot
+ * is polled by one node only. Nodes announce themselves with a heartbeat; every node computes the same owner per
+ * shard from the set of live nodes (rendezvous hashing), claims the shards it should own and lets go of the rest.
+ * When a node joins or leaves only the shards that change owner move, a node that dies loses its shards when its
+ * leases expire.
+ * <p>
+ * While Redis cannot be reached a node keeps the shards it last held, and takes all of them when it never held any,
+ * so that reminders still go out. As with the {@link DeliveryLedger} a duplicate is better than a lost reminder.
+ */
+class ShardLeases {
+    private static final String NODES = "cali_nodes";
+    private static final String SHARD = "cali_shard_";
+    // owned or free and claimed -> 1, owned by someone else -> 0
+    private static final String CLAIM = "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+            "return redis.call('pexpire', KEYS[1], ARGV[2]) " +
+            "elseif redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then return 1 " +
+            "else return 0 end";
+    private static final String RELEASE = "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+            "return redis.call('del', KEYS[1]) else return 0 end";
+
+    private final String node = UUID.randomUUID().toString();
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor();
+    private final Configuration.DB db;
+    private final int shards;
+    private final long lease;
+    // millis until which this node holds the lease, per shard. 0 when not owned
+    private final AtomicLongArray ownedUntil;
+    // live nodes as of the last heartbeat
+    private volatile int nodes = 1;
+    private volatile Runnable onChange = () -> {
+    };
+
+    ShardLeases(Configuration.DB db, Config.Polling config) {
+        this.db = db;
+        this.shards = config.shards;
+        this.lease = TimeUnit.SECONDS.toMillis(config.lease);
+        this.ownedUntil = new AtomicLongArray(shards);
+
+        Service.metrics.register(MetricRegistry.name(ShardLeases.class, "owned"), (Gauge<Integer>) this::owned);
+    }
+
+    /**
+     * Claims the first shards right away and then renews every third of the lease.
+     *
+     * @param onChange called after the set of owned shards or the number of live nodes changed
+     */
+    void start(Runnable onChange) {
+        this.onChange = onChange;
+        heartbeat();
+        long period = lease / 3;
+        heartbeats.scheduleWithFixedDelay(this::heartbeat, period, period, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::release));
+    }
+
+    int nodes() {
+        return nodes;
+    }
+
+    boolean owns(String botId) {
+        return ownedUntil.get(shard(botId)) > System.currentTimeMillis();
+    }
+
+    int shard(String botId) {
+        return (botId.hashCode() & Integer.MAX_VALUE) % shards;
+    }
+
+    private void heartbeat() {
+        try (Jedis jedis = RedisPool.getConnection(db)) {
+            long now = System.currentTimeMillis();
+            boolean changed = false;
+            jedis.zadd(NODES, now, node);
+            // a node is gone when it missed its lease
+            jedis.zremrangeByScore(NODES, 0, now - lease);
+            List<String> nodes = new ArrayList<>(jedis.zrange(NODES, 0, -1));
+            changed |= nodes.size() != this.nodes;
+            this.nodes = nodes.size();
+
+            String px = Long.toString(lease);
+            Pipeline pipeline = jedis.pipelined();
+            Response<?>[] claims = new Response<?>[shards];
+            for (int shard = 0; shard < shards; shard++) {
+                List<String> key = Collections.singletonList(SHARD + shard);
+                if (node.equals(owner(shard, nodes)))
+                    claims[shard] = pipeline.eval(CLAIM, key, Arrays.asList(node, px));
+                else if (ownedUntil.get(shard) != 0)
+                    pipeline.eval(RELEASE, key, Collections.singletonList(node));
+            }
+            pipeline.sync();
+
+            for (int shard = 0; shard < shards; shard++) {
+                boolean owned = claims[shard] != null && Long.valueOf(1).equals(claims[shard].get());
+                changed |= owned != (ownedUntil.get(shard) != 0);
+                ownedUntil.set(shard, owned ? now + lease : 0);
+            }
+
+            if (changed) {
+                Logger.info("ShardLeases: %s owns %d of %d shards, %d nodes", node, owned(), shards, nodes.size());
+                onChange.run();
+            }
+        } catch (Exception e) {
+            Logger.warning("ShardLeases: heartbeat failed: %s", e);
+            keep();
+        }
+    }
+
+    // Redis is unreachable, other nodes cannot take our shards from us either
+    private void keep() {
+        long until = System.currentTimeMillis() + lease;
+        boolean held = false;
+        for (int shard = 0; shard < shards; shard++) {
+            if (ownedUntil.get(shard) != 0) {
+                ownedUntil.set(shard, until);
+                held = true;
+            }
+        }
+        if (held)
+            return;
+
+        for (int shard = 0; shard < shards; shard++)
+            ownedUntil.set(shard, until);
+        Logger.warning("ShardLeases: %s takes all %d shards until Redis is back", node, shards);
+        onChange.run();
+    }
+
+    private void release() {
+        try (Jedis jedis = RedisPool.getConnection(db)) {
+            jedis.zrem(NODES, node);
+            for (int shard = 0; shard < shards; shard++) {
+                if (ownedUntil.get(shard) != 0)
+                    jedis.eval(RELEASE, Collections.singletonList(SHARD + shard), Collections.singletonList(node));
+            }
+        } catch (Exception e) {
+            Logger.warning("ShardLeases: release failed: %s", e);
+        }
+    }
+
+    private int owned() {
+        long now = System.currentTimeMillis();
+        int ret = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            if (ownedUntil.get(shard) > now)
+                ret++;
+        }
+        return ret;
+    }
+
+    // rendezvous hashing: the node with the highest score for the shard owns it
+    static String owner(int shard, List<String> nodes) {
+        String ret = null;
+        long best = Long.MIN_VALUE;
+        for (String node : nodes) {
+            long score = mix(node.hashCode() * 31L + shard);
+            if (ret == null || score > best) {
+                best = score;
+                ret = node;
+            }
+        }
+        return ret;
+    }
+
+    // splitmix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,198 @@
+package com.wire.bots.cali;
+
+import com.wire.bots.sdk.tools.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * In-memory copy of the Cali table. Loaded in bulk once and then kept up to date by Postgres notifications:
+ * every write in {@link Database} issues a NOTIFY with the botId and every replica reloads just that row.
+ */
+class SubscriberCache {
+    static final String CHANNEL = "cali_subscribers";
+    private static final int POLL = 10000;
+    private static final int RECONNECT = 5000;
+    private static final int STARTUP = 60;
+
+    private final ConcurrentHashMap<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final Database database;
+    private final Config.Postgres conf;
+
+    SubscriberCache(Database database, Config.Postgres conf) {
+        this.database = database;
+        this.conf = conf;
+    }
+
+    /**
+     * Starts listening and waits for the first bulk load.
+     */
+    void start() throws InterruptedException {
+        Thread listener = new Thread(this::listen, "subscriber-cache");
+        listener.setDaemon(true);
+        listener.start();
+        if (!loaded.await(STARTUP, TimeUnit.SECONDS))
+            Logger.warning("SubscriberCache: not loaded after %d seconds, continuing with an empty cache", STARTUP);
+    }
+
+    Subscriber get(String botId) {
+        return subscribers.get(botId);
+    }
+
+    ArrayList<String> getBotIds() {
+        return new ArrayList<>(subscribers.keySet());
+    }
+
+    int count(Predicate<Subscriber> filter) {
+        int ret = 0;
+        for (Subscriber subscriber : subscribers.values()) {
+            if (filter.test(subscriber))
+                ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * Applies a local write right away, the notification only confirms it on this node.
+     */
+    void update(String botId, UnaryOperator<Subscriber> update) {
+        subscribers.computeIfPresent(botId, (k, v) -> update.apply(v));
+    }
+
+    void put(Subscriber subscriber) {
+        subscribers.put(subscriber.botId, subscriber);
+    }
+
+    void remove(String botId) {
+        subscribers.remove(botId);
+    }
+
+    private void listen() {
+        while (true) {
+            String url = String.format("jdbc:postgresql://%s:%d/%s", conf.host, conf.port, conf.database);
+            try (Connection c = DriverManager.getConnection(url, conf.user, conf.password);
+                 Statement stmt = c.createStatement()) {
+                stmt.execute("LISTEN " + CHANNEL);
+
+                // Listening before loading, so nothing written in between gets lost. Also covers all the
+                // notifications missed while we were disconnected
+                reload();
+                loaded.countDown();
+
+                PGConnection pg = c.unwrap(PGConnection.class);
+                while (true) {
+                    PGNotification[] notifications = pg.getNotifications(POLL);
+                    if (notifications == null)
+                        continue;
+                    for (PGNotification notification : notifications) {
+                        reload(notification.getParameter());
+                    }
+                }
+            } catch (Exception e) {
+                Logger.warning("SubscriberCache: %s", e);
+            }
+
+            try {
+                Thread.sleep(RECONNECT);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void reload() throws SQLException {
+        // only rows that were cached before the load can be gone, the ones put since are newer than the load
+        HashSet<String> before = new HashSet<>(subscribers.keySet());
+        Map<String, Subscriber> all = database.loadSubscribers();
+        subscribers.putAll(all);
+        before.removeAll(all.keySet());
+        for (String botId : before) {
+            subscribers.remove(botId);
+        }
+        Logger.info("SubscriberCache: loaded %d subscribers", all.size());
+    }
+
+    private void reload(String botId) {
+        try {
+            Subscriber subscriber = database.loadSubscriber(botId);
+            if (subscriber != null)
+                subscribers.put(botId, subscriber);
+            else
+                subscribers.remove(botId);
+        } catch (SQLException e) {
+            Logger.warning("SubscriberCache: %s %s", botId, e);
+        }
+    }
+
+    static class Subscriber {
+        final String botId;
+        final boolean muted;
+        // epoch millis of the scheduled call
+        final Long scheduledAt;
+        // calendar's time zone id, null until fetched
+        final String timeZone;
+        final long timeZoneUpdated;
+        final CredentialHealth.State authState;
+        // credential failures in a row
+        final int authFailures;
+        // epoch millis a suspended bot may be tried again
+        final long authRetryAt;
+        // epoch millis the bot's push channel expires, 0 without one
+        final long channelExpiration;
+
+        Subscriber(String botId, boolean muted, Long scheduledAt) {
+            this(botId, muted, scheduledAt, null, 0, CredentialHealth.State.HEALTHY, 0, 0, 0);
+        }
+
+        Subscriber(String botId, boolean muted, Long scheduledAt, String timeZone, long timeZoneUpdated,
+                   CredentialHealth.State authState, int authFailures, long authRetryAt, long channelExpiration) {
+            this.botId = botId;
+            this.muted = muted;
+            this.scheduledAt = scheduledAt;
+            this.timeZone = timeZone;
+            this.timeZoneUpdated = timeZoneUpdated;
+            this.authState = authState;
+            this.authFailures = authFailures;
+            this.authRetryAt = authRetryAt;
+            this.channelExpiration = channelExpiration;
+        }
+
+        Subscriber withMuted(boolean muted) {
+            return new Subscriber(botId, muted, scheduledAt, timeZone, timeZoneUpdated, authState, authFailures,
+                    authRetryAt, channelExpiration);
+        }
+
+        Subscriber withSchedule(Long scheduledAt) {
+            return new Subscriber(botId, muted, scheduledAt, timeZone, timeZoneUpdated, authState, authFailures,
+                    authRetryAt, channelExpiration);
+        }
+
+        Subscriber withTimeZone(String timeZone, long updated) {
+            return new Subscriber(botId, muted, scheduledAt, timeZone, updated, authState, authFailures,
+                    authRetryAt, channelExpiration);
+        }
+
+        Subscriber withAuth(CredentialHealth.State state, int failures, long retryAt) {
+            return new Subscriber(botId, muted, scheduledAt, timeZone, timeZoneUpdated, state, failures, retryAt,
+                    channelExpiration);
+        }
+
+        Subscriber withChannel(long expiration) {
+            return new Subscriber(botId, muted, scheduledAt, timeZone, timeZoneUpdated, authState, authFailures,
+                    authRetryAt, expiration);
+        }
+    }
+}
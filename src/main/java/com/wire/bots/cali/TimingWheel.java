@@ -0,0 +1,230 @@
+package com.wire.bots.cali;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed hierarchical timing wheel (Varghese and Lauck). Time is divided into ticks, a deadline is stored in the
+ * lowest level whose slots still cover it and cascades down a level each time the level below wraps around.
+ * Schedule and cancel are O(1), advancing costs O(1) per tick plus the work of the timeouts that expire.
+ * <p>
+ * The wheel only keeps time, expired tasks are handed to the executor so slow tasks never delay other timeouts.
+ */
+class TimingWheel {
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickMillis;
+    private final int bits;
+    private final int mask;
+    private final long origin;
+    private final Bucket[][] levels;
+    private final Executor executor;
+    private final ArrayList<Timeout> due = new ArrayList<>();
+    private long ticks;
+    private int size;
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param bits       log2 of slots per level
+     * @param now        current time in millis, all deadlines are relative to it
+     * @param executor   runs the expired tasks
+     */
+    TimingWheel(long tickMillis, int bits, long now, Executor executor) {
+        this.tickMillis = tickMillis;
+        this.bits = bits;
+        this.mask = (1 << bits) - 1;
+        this.origin = now;
+        this.executor = executor;
+        this.levels = new Bucket[(Long.SIZE - 1 + bits - 1) / bits][1 << bits];
+        for (Bucket[] level : levels) {
+            for (int i = 0; i < level.length; i++)
+                level[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Drives the wheel from the wall clock on a single daemon thread.
+     */
+    static TimingWheel start(long tickMillis, int bits, Executor executor) {
+        final TimingWheel wheel = new TimingWheel(tickMillis, bits, System.currentTimeMillis(), executor);
+        ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "timing-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        clock.scheduleAtFixedRate(() -> wheel.advanceTo(System.currentTimeMillis()), tickMillis, tickMillis,
+                TimeUnit.MILLISECONDS);
+        return wheel;
+    }
+
+    /**
+     * Schedules the task to run at the first tick at or after the deadline. Deadlines in the past run on the next
+     * advance.
+     */
+    synchronized Timeout schedule(long deadline, Runnable task) {
+        Timeout timeout = new Timeout(deadline, task);
+        long delta = deadline - origin;
+        timeout.tick = delta <= 0 ? 0 : (delta + tickMillis - 1) / tickMillis;
+        place(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Expires everything due up to now and hands it to the executor.
+     */
+    void advanceTo(long now) {
+        ArrayList<Timeout> expired;
+        synchronized (this) {
+            long target = (now - origin) / tickMillis;
+            while (ticks < target) {
+                if (size == due.size()) {
+                    // nothing left in the wheel, jump straight to the target
+                    ticks = target;
+                    break;
+                }
+                ticks++;
+                cascade();
+                drain(levels[0][(int) (ticks & mask)]);
+            }
+            if (due.isEmpty())
+                return;
+
+            expired = new ArrayList<>(due);
+            due.clear();
+            for (Timeout timeout : expired) {
+                timeout.state = EXPIRED;
+            }
+            size -= expired.size();
+        }
+
+        for (Timeout timeout : expired) {
+            executor.execute(timeout.task);
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private synchronized boolean cancel(Timeout timeout) {
+        if (timeout.state != PENDING)
+            return false;
+
+        timeout.state = CANCELLED;
+        if (timeout.bucket != null)
+            timeout.bucket.remove(timeout);
+        else
+            due.remove(timeout);
+        size--;
+        return true;
+    }
+
+    // Re-distributes the higher level slots whose turn came with the current tick, highest level first so that
+    // entries can keep falling through to the levels below
+    private void cascade() {
+        int level = 0;
+        while (level + 1 < levels.length && (ticks & ((1L << (bits * (level + 1))) - 1)) == 0)
+            level++;
+
+        for (; level > 0; level--) {
+            Bucket bucket = levels[level][(int) ((ticks >>> (bits * level)) & mask)];
+            Timeout timeout = bucket.clear();
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.next = null;
+                timeout.prev = null;
+                place(timeout);
+                timeout = next;
+            }
+        }
+    }
+
+    private void drain(Bucket bucket) {
+        Timeout timeout = bucket.clear();
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            timeout.prev = null;
+            timeout.bucket = null;
+            due.add(timeout);
+            timeout = next;
+        }
+    }
+
+    private void place(Timeout timeout) {
+        if (timeout.tick <= ticks) {
+            timeout.bucket = null;
+            due.add(timeout);
+            return;
+        }
+
+        int level = 0;
+        while (level + 1 < levels.length && (timeout.tick >>> (bits * (level + 1))) != (ticks >>> (bits * (level + 1))))
+            level++;
+
+        levels[level][(int) ((timeout.tick >>> (bits * level)) & mask)].add(timeout);
+    }
+
+    class Timeout {
+        final long deadline;
+        final Runnable task;
+        private long tick;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+        private volatile int state = PENDING;
+
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /**
+         * @return false if the task already expired or was cancelled before
+         */
+        boolean cancel() {
+            return TimingWheel.this.cancel(this);
+        }
+
+        boolean isPending() {
+            return state == PENDING;
+        }
+    }
+
+    private static class Bucket {
+        private Timeout head;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = null;
+            timeout.next = head;
+            if (head != null)
+                head.prev = timeout;
+            head = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null)
+                timeout.prev.next = timeout.next;
+            else
+                head = timeout.next;
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        Timeout clear() {
+            Timeout ret = head;
+            head = null;
+            return ret;
+        }
+    }
+}
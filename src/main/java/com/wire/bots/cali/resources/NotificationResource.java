@@ -1,6 +1,7 @@
 package com.wire.bots.cali.resources;
 
 import com.wire.bots.cali.CalendarAPI;
+import com.wire.bots.cali.CalendarSync;
 import com.wire.bots.sdk.ClientRepo;
 import com.wire.bots.sdk.WireClient;
 import com.wire.bots.sdk.tools.Logger;
@@ -13,20 +14,26 @@ import javax.ws.rs.core.Response;
 @Path("/notifications")
 public class NotificationResource {
     private final ClientRepo repo;
+    private final CalendarSync calendarSync;
 
-    public NotificationResource(ClientRepo repo) {
+    public NotificationResource(ClientRepo repo, CalendarSync calendarSync) {
         this.repo = repo;
+        this.calendarSync = calendarSync;
     }
 
     @POST
-    public Response notification(@HeaderParam("X-Goog-Channel-ID") final String bot,
+    public Response notification(@HeaderParam("X-Goog-Channel-ID") final String channelId,
+                                 @HeaderParam("X-Goog-Channel-Token") final String token,
                                  @HeaderParam("X-Goog-Resource-State") final String state,
                                  @HeaderParam("X-Goog-Resource-ID") final String resourceId) {
 
         try {
+            // older channels were opened with the bot's id as the channel id and no token
+            final String bot = token != null ? token : channelId;
 
-            Logger.info("notification: X-Goog-Channel-ID:%s X-Goog-Resource-State: %s X-Goog-Resource-ID: %s",
+            Logger.info("notification: %s X-Goog-Channel-ID:%s X-Goog-Resource-State: %s X-Goog-Resource-ID: %s",
                     bot,
+                    channelId,
                     state,
                     resourceId);
 
@@ -34,19 +41,14 @@ public class NotificationResource {
 
             if (wireClient == null) {
                 Logger.info("NotificationResource: %s missing wire client", bot);
-                CalendarAPI.stop(bot, resourceId);
+                CalendarAPI.stop(bot, channelId, resourceId);
                 return Response.
                         status(410).
                         build();
             }
 
             try {
-//                Events changes = CalendarAPI.getChanges(bot, null);
-//
-//                for (Event change : changes.getItems()) {
-//                    String message = String.format("Event: %s at: %s", change.getDescription(), change.getStart().getDate());
-//                    wireClient.sendText(message);
-//                }
+                calendarSync.onNotification(bot);
             } catch (Exception e) {
                 Logger.error("NotificationResource: %s %s", bot, e);
             }
@@ -0,0 +1,97 @@
+package com.google.api.client.util.store;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class WriteBehindTest {
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void newerWriteWinsOverFailedFlush() throws Exception {
+        ArrayList<Map<String, String>> flushed = new ArrayList<>();
+        RedisDataStoreFactory.WriteBehind[] writeBehind = new RedisDataStoreFactory.WriteBehind[1];
+        boolean[] fail = {true};
+
+        writeBehind[0] = new RedisDataStoreFactory.WriteBehind(batch -> {
+            if (fail[0]) {
+                fail[0] = false;
+                // written while the failing flush was in flight
+                writeBehind[0].enqueue("store", Collections.singletonMap("token", bytes("new")),
+                        Collections.emptyList());
+                throw new Exception("redis down");
+            }
+            HashMap<String, String> copy = new HashMap<>();
+            for (Map.Entry<String, byte[]> field : batch.get("store").entrySet()) {
+                copy.put(field.getKey(), field.getValue() == RedisDataStoreFactory.WriteBehind.DELETED
+                        ? null
+                        : string(field.getValue()));
+            }
+            flushed.add(copy);
+        });
+
+        HashMap<String, byte[]> first = new HashMap<>();
+        first.put("token", bytes("old"));
+        first.put("refresh", bytes("kept"));
+        writeBehind[0].enqueue("store", first, Collections.emptyList());
+
+        writeBehind[0].flush();
+        writeBehind[0].flush();
+
+        assertEquals(1, flushed.size());
+        assertEquals("new", flushed.get(0).get("token"));
+        assertEquals("kept", flushed.get(0).get("refresh"));
+    }
+
+    @Test
+    public void deleteWinsOverFailedFlush() throws Exception {
+        ArrayList<Map<String, byte[]>> flushed = new ArrayList<>();
+        RedisDataStoreFactory.WriteBehind[] writeBehind = new RedisDataStoreFactory.WriteBehind[1];
+        boolean[] fail = {true};
+
+        writeBehind[0] = new RedisDataStoreFactory.WriteBehind(batch -> {
+            if (fail[0]) {
+                fail[0] = false;
+                writeBehind[0].enqueue("store", Collections.emptyMap(), Collections.singletonList("token"));
+                throw new Exception("redis down");
+            }
+            flushed.add(new HashMap<>(batch.get("store")));
+        });
+
+        writeBehind[0].enqueue("store", Collections.singletonMap("token", bytes("old")), Collections.emptyList());
+        writeBehind[0].flush();
+        writeBehind[0].flush();
+
+        assertEquals(1, flushed.size());
+        assertEquals(RedisDataStoreFactory.WriteBehind.DELETED, flushed.get(0).get("token"));
+    }
+
+    @Test
+    public void snapshotKeepsWritesFlushedAfterIt() throws Exception {
+        RedisDataStoreFactory.WriteBehind writeBehind = new RedisDataStoreFactory.WriteBehind(batch -> {
+        });
+        writeBehind.enqueue("store", Collections.singletonMap("token", bytes("new")),
+                Collections.singletonList("refresh"));
+
+        HashMap<String, byte[]> snapshot = writeBehind.snapshot("store");
+        writeBehind.flush();
+
+        // read from Redis before the flush landed
+        HashMap<String, byte[]> values = new HashMap<>();
+        values.put("token", bytes("old"));
+        values.put("refresh", bytes("old"));
+        RedisDataStoreFactory.WriteBehind.apply(snapshot, values);
+
+        assertEquals("new", string(values.get("token")));
+        assertEquals(1, values.size());
+    }
+}
@@ -0,0 +1,81 @@
+package com.wire.bots.cali;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CalendarQuotaTest {
+    private static final long NOW = 1_500_000_000_000L;
+
+    @Test
+    public void refillsAtTheRate() {
+        CalendarQuota.TokenBucket bucket = new CalendarQuota.TokenBucket(10, 2, NOW);
+        assertEquals(0, bucket.delay(NOW, 0));
+        bucket.take();
+        bucket.take();
+
+        // 10 per second, one token every 100 ms
+        assertEquals(100, bucket.delay(NOW, 0));
+        assertEquals(0, bucket.delay(NOW + 100, 0));
+    }
+
+    @Test
+    public void backgroundLeavesTheReserve() {
+        CalendarQuota.TokenBucket bucket = new CalendarQuota.TokenBucket(10, 10, NOW);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(0, bucket.delay(NOW, 2));
+            bucket.take();
+        }
+        assertEquals(100, bucket.delay(NOW, 2));
+        // interactive can still go
+        assertEquals(0, bucket.delay(NOW, 0));
+    }
+
+    @Test
+    public void resizeKeepsTheTokensWithinTheNewBurst() {
+        CalendarQuota.TokenBucket bucket = new CalendarQuota.TokenBucket(10, 10, NOW);
+        // split between two nodes
+        bucket.resize(5, 5, NOW);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.delay(NOW, 0));
+            bucket.take();
+        }
+        // 5 per second, one token every 200 ms
+        assertEquals(200, bucket.delay(NOW, 0));
+    }
+
+    @Test
+    public void quotaErrorsBackOffWithJitter() {
+        CalendarQuota.TokenBucket bucket = new CalendarQuota.TokenBucket(10, 10, NOW);
+        bucket.pause(NOW, 1000, 60000);
+        long first = bucket.delay(NOW, 0);
+        assertTrue(first >= 500 && first <= 1000);
+
+        bucket.pause(NOW, 1000, 60000);
+        long second = bucket.delay(NOW, 0);
+        assertTrue(second >= 1000 && second <= 2000);
+    }
+
+    @Test
+    public void quotaErrorsAreToldApart() {
+        Service.metrics = new MetricRegistry();
+        CalendarQuota quota = new CalendarQuota(new Config.Quota());
+        assertEquals(250, quota.throttled("bot", new CalendarQuota.Throttled("throttled", 250)));
+        assertEquals(-1, quota.throttled("bot", new IOException("connection reset")));
+
+        quota.onError("bot", 429, null);
+        GoogleJsonResponseException tooMany = new GoogleJsonResponseException(
+                new HttpResponseException.Builder(429, "Too Many Requests", new HttpHeaders()), null);
+        // the pause of the project's bucket, backoff with jitter
+        long delay = quota.throttled("bot", new CompletionException(tooMany));
+        assertTrue(delay > 0 && delay <= 1000);
+    }
+}
@@ -0,0 +1,116 @@
+package com.wire.bots.cali;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CommandExecutorTest {
+    private static final long TIMEOUT = 5;
+
+    private static CommandExecutor executor(int maxInFlight) {
+        Service.metrics = new MetricRegistry();
+
+        Config.Commands config = new Config.Commands();
+        config.threads = 4;
+        config.maxInFlight = maxInFlight;
+        return new CommandExecutor(config);
+    }
+
+    // the tail of a bot is dropped right after its last command, on the thread that ran it
+    private static void awaitIdle(CommandExecutor executor) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+        while (executor.bots() != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, executor.bots());
+    }
+
+    @Test
+    public void commandsOfABotRunInOrder() throws Exception {
+        CommandExecutor executor = executor(1000);
+        List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> expected = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int command = i;
+            expected.add(i);
+            assertTrue(executor.submit("bot", () -> {
+                ran.add(command);
+                done.countDown();
+            }));
+        }
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(expected, ran);
+        awaitIdle(executor);
+    }
+
+    @Test
+    public void failedCommandDoesNotStopTheNext() throws Exception {
+        CommandExecutor executor = executor(10);
+        CountDownLatch done = new CountDownLatch(1);
+        assertTrue(executor.submit("bot", () -> {
+            throw new IllegalStateException("command failed");
+        }));
+        assertTrue(executor.submit("bot", done::countDown));
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        awaitIdle(executor);
+    }
+
+    @Test
+    public void botsRunConcurrently() throws Exception {
+        CommandExecutor executor = executor(10);
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        // each waits for the other bot's command, run one after the other neither would finish
+        assertTrue(executor.submit("first", () -> {
+            first.countDown();
+            if (await(second))
+                done.countDown();
+        }));
+        assertTrue(executor.submit("second", () -> {
+            second.countDown();
+            if (await(first))
+                done.countDown();
+        }));
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        awaitIdle(executor);
+    }
+
+    @Test
+    public void rejectsBeyondMaxInFlight() throws Exception {
+        CommandExecutor executor = executor(2);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(executor.submit("first", () -> await(release)));
+        assertTrue(executor.submit("second", () -> await(release)));
+        assertFalse(executor.submit("third", () -> {
+        }));
+        assertEquals(1, Service.metrics.meter(MetricRegistry.name(CommandExecutor.class, "rejected")).getCount());
+
+        release.countDown();
+        awaitIdle(executor);
+        // the permits are back
+        CountDownLatch done = new CountDownLatch(1);
+        assertTrue(executor.submit("third", done::countDown));
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
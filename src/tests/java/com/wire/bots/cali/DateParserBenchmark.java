@@ -0,0 +1,66 @@
+package com.wire.bots.cali;
+
+import org.ocpsoft.prettytime.nlp.PrettyTimeParser;
+import org.ocpsoft.prettytime.nlp.parse.DateGroup;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A /cali argument parsed by a new PrettyTimeParser (what addEvent used to do) and through the DateParser, once
+ * with a repeated phrase (memo hit) and once with a phrase that was not seen before (pooled parser). The last two
+ * parse a /polly argument with PrettyTime and with the FastDateParser.
+ * <p>
+ * mvn test-compile exec:java -Dexec.mainClass=com.wire.bots.cali.DateParserBenchmark -Dexec.classpathScope=test
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DateParserBenchmark {
+    private static final String LINE = "standup tomorrow at 9:00 with dejan@wire.com";
+    private static final String POLLY = "tomorrow at 9:00";
+    private static final TimeZone CET = TimeZone.getTimeZone("CET");
+
+    private final PrettyTimeParser prettyTime = new PrettyTimeParser(CET);
+
+    private int minutes;
+
+    @Benchmark
+    public List<DateGroup> newParser() {
+        return new PrettyTimeParser().parseSyntax(LINE);
+    }
+
+    @Benchmark
+    public DateParser.Result memoized() {
+        return DateParser.parse(LINE, CET);
+    }
+
+    @Benchmark
+    public DateParser.Result pooled() {
+        return DateParser.parse("standup in " + ++minutes + " minutes", CET);
+    }
+
+    @Benchmark
+    public List<DateGroup> prettyTime() {
+        return prettyTime.parseSyntax(POLLY);
+    }
+
+    @Benchmark
+    public long fastPath() {
+        return FastDateParser.parse(POLLY, System.currentTimeMillis(), CET);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(DateParserBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,68 @@
+package com.wire.bots.cali;
+
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.calendar.model.Events;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One events.list page of 250 events decoded into the generated model and with the EventDecoder. Run with the GC
+ * profiler, gc.alloc.rate.norm divided by EVENTS is the allocation per event.
+ * <p>
+ * mvn test-compile exec:java -Dexec.mainClass=com.wire.bots.cali.EventDecoderBenchmark -Dexec.classpathScope=test
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EventDecoderBenchmark {
+    private static final int EVENTS = 250;
+
+    private final JsonObjectParser model = new JsonObjectParser(JacksonFactory.getDefaultInstance());
+    private byte[] page;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder("{\"kind\": \"calendar#events\", " +
+                "\"defaultReminders\": [{\"method\": \"popup\", \"minutes\": 10}], \"items\": [");
+        for (int i = 0; i < EVENTS; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(String.format("{\"kind\": \"calendar#event\", \"etag\": \"\\\"31811617847%05d\\\"\", " +
+                    "\"id\": \"event%d\", \"status\": \"confirmed\", " +
+                    "\"htmlLink\": \"https://www.google.com/calendar/event?eid=event%d\", \"summary\": \"Meeting %d\", " +
+                    "\"start\": {\"dateTime\": \"2018-05-%02dT%02d:00:00+02:00\"}, " +
+                    "\"reminders\": {\"useDefault\": false, \"overrides\": [{\"method\": \"popup\", \"minutes\": 15}]}}",
+                    i, i, i, i, 1 + i % 28, i % 24));
+        }
+        page = sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Events generatedModel() throws IOException {
+        return model.parseAndClose(new ByteArrayInputStream(page), StandardCharsets.UTF_8, Events.class);
+    }
+
+    @Benchmark
+    public CalendarEvent.Page eventDecoder() throws IOException {
+        return EventDecoder.decodeEvents(new ByteArrayInputStream(page));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(EventDecoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,88 @@
+package com.wire.bots.cali;
+
+import com.google.api.client.util.DateTime;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class EventDecoderTest {
+    static final String PAGE = "{\n" +
+            " \"kind\": \"calendar#events\",\n" +
+            " \"defaultReminders\": [{\"method\": \"popup\", \"minutes\": 10}, {\"method\": \"email\", \"minutes\": 30}],\n" +
+            " \"nextSyncToken\": \"CPDAlvWDx70CEPDAlvWDx70CGAU=\",\n" +
+            " \"items\": [\n" +
+            "  {\n" +
+            "   \"kind\": \"calendar#event\",\n" +
+            "   \"etag\": \"\\\"3181161784712000\\\"\",\n" +
+            "   \"id\": \"4eahs9ghkhrvkld72hogu9ph3e\",\n" +
+            "   \"status\": \"confirmed\",\n" +
+            "   \"htmlLink\": \"https://www.google.com/calendar/event?eid=NGVhaHM5\",\n" +
+            "   \"summary\": \"Standup\",\n" +
+            "   \"description\": {\"nested\": [1, 2, {\"deep\": true}]},\n" +
+            "   \"attendees\": [{\"email\": \"dejan@wire.com\"}],\n" +
+            "   \"start\": {\"dateTime\": \"2018-05-04T10:00:00+02:00\", \"timeZone\": \"Europe/Berlin\"},\n" +
+            "   \"reminders\": {\"useDefault\": false, \"overrides\": [{\"method\": \"popup\", \"minutes\": 5}]}\n" +
+            "  },\n" +
+            "  {\n" +
+            "   \"id\": \"allday\",\n" +
+            "   \"status\": \"confirmed\",\n" +
+            "   \"start\": {\"date\": \"2018-05-05\"},\n" +
+            "   \"recurrence\": [\"RRULE:FREQ=WEEKLY\"],\n" +
+            "   \"reminders\": {\"useDefault\": true}\n" +
+            "  },\n" +
+            "  {\"id\": \"gone\", \"status\": \"cancelled\"}\n" +
+            " ]\n" +
+            "}";
+
+    @Test
+    public void decodesPage() throws IOException {
+        CalendarEvent.Page page = EventDecoder.decodeEvents(stream(PAGE));
+        assertArrayEquals(new int[]{10, 30}, page.defaultReminders);
+        assertNull(page.nextPageToken);
+        assertEquals("CPDAlvWDx70CEPDAlvWDx70CGAU=", page.nextSyncToken);
+        assertEquals(3, page.items.length);
+
+        CalendarEvent standup = page.items[0];
+        assertEquals("4eahs9ghkhrvkld72hogu9ph3e", standup.id);
+        assertEquals("\"3181161784712000\"", standup.etag);
+        assertEquals("Standup", standup.summary);
+        assertEquals("https://www.google.com/calendar/event?eid=NGVhaHM5", standup.htmlLink);
+        assertTrue(standup.hasStartTime());
+        assertEquals(DateTime.parseRfc3339("2018-05-04T10:00:00+02:00").getValue(), standup.start);
+        assertEquals(120, standup.timeZoneShift);
+        assertFalse(standup.recurring);
+        assertEquals(1, standup.reminderCount());
+        assertEquals(5, standup.reminderMinutes(0));
+
+        CalendarEvent allDay = page.items[1];
+        assertTrue(allDay.allDay);
+        assertFalse(allDay.hasStartTime());
+        assertTrue(allDay.recurring);
+        assertFalse(allDay.hasReminders());
+        assertEquals(DateTime.parseRfc3339("2018-05-05").getValue(), allDay.start);
+
+        CalendarEvent gone = page.items[2];
+        assertTrue(gone.isCancelled());
+        assertFalse(gone.hasStartTime());
+    }
+
+    @Test
+    public void parsesRfc3339LikeGoogle() throws IOException {
+        String[] dates = {"2018-05-04T10:00:00+02:00", "2018-05-04T08:00:00.000Z", "2018-05-04T08:00:00.250Z",
+                "1969-12-31T23:59:59-05:30", "2020-02-29T12:30:00-08:00", "2018-05-04", "2000-03-01"};
+        for (String date : dates) {
+            DateTime expected = DateTime.parseRfc3339(date);
+            assertEquals(date, expected.getValue(), EventDecoder.Rfc3339.parse(date));
+            if (!expected.isDateOnly())
+                assertEquals(date, expected.getTimeZoneShift(), EventDecoder.Rfc3339.offsetMinutes(date));
+        }
+    }
+
+    private static ByteArrayInputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,76 @@
+package com.wire.bots.cali;
+
+import org.junit.Test;
+import org.ocpsoft.prettytime.nlp.PrettyTimeParser;
+import org.ocpsoft.prettytime.nlp.parse.DateGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class FastDateParserTest {
+    private static final TimeZone CET = TimeZone.getTimeZone("CET");
+    private static final long TOLERANCE = 1000;
+    private static final String[] DAYS = {"today", "tomorrow", "Tomorrow", "monday", "tuesday", "wednesday",
+            "thursday", "friday", "Saturday", "sunday"};
+    private static final int[] MINUTES = {0, 7, 15, 30, 45, 59};
+
+    private final PrettyTimeParser prettyTime = new PrettyTimeParser(CET);
+
+    // Generated corpus of the shapes the fast path knows, every match has to agree with PrettyTime
+    @Test
+    public void agreesWithPrettyTime() {
+        List<String> corpus = new ArrayList<>();
+        for (int hours = 0; hours < 24; hours++) {
+            for (int minutes : MINUTES) {
+                String time = String.format("%d:%02d", hours, minutes);
+                corpus.add(time);
+                corpus.add(String.format("%02d:%02d", hours, minutes));
+                corpus.add("at " + time);
+                for (String day : DAYS) {
+                    corpus.add(day + " at " + time);
+                }
+            }
+        }
+        for (int n = 1; n <= 180; n++) {
+            corpus.add("in " + n + " minutes");
+        }
+        for (int n = 1; n <= 48; n++) {
+            corpus.add("in " + n + (n == 1 ? " hour" : " hours"));
+        }
+        corpus.add("  tomorrow   at 9:00 ");
+        corpus.add("in 1 minute");
+
+        int matched = 0;
+        for (String text : corpus) {
+            long now = System.currentTimeMillis();
+            long fast = FastDateParser.parse(text, now, CET);
+            if (fast == FastDateParser.NO_MATCH)
+                continue;
+            matched++;
+
+            List<DateGroup> dateGroups = prettyTime.parseSyntax(text);
+            assertFalse(text, dateGroups.isEmpty());
+            long expected = dateGroups.get(0).getDates().get(0).getTime();
+            long elapsed = System.currentTimeMillis() - now;
+            assertTrue(String.format("%s: fast %d, PrettyTime %d", text, fast, expected),
+                    Math.abs(fast - expected) <= TOLERANCE + elapsed);
+        }
+
+        // only today's weekday and the times that passed today fall through
+        assertTrue("matched " + matched + " of " + corpus.size(), matched > corpus.size() / 2);
+    }
+
+    @Test
+    public void leavesTheRestToPrettyTime() {
+        String[] texts = {"", "at", "9am", "24:00", "18:60", "18:5", "in 0 minutes", "in 2 minute", "in minutes",
+                "in 5 days", "next friday at 18:00", "tomorrow 9:00", "tomorrow at 9:00 standup",
+                "call tomorrow at 9:00", "friday at", "every day at 9:00"};
+        long now = System.currentTimeMillis();
+        for (String text : texts) {
+            assertEquals(text, FastDateParser.NO_MATCH, FastDateParser.parse(text, now, CET));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.wire.bots.cali;
+
+import com.codahale.metrics.MetricRegistry;
+import com.wire.bots.sdk.WireClient;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+    private static final long TIMEOUT = 5;
+
+    // stands in for the bot's client, the deliveries of the test never use it
+    private static final WireClient CLIENT = (WireClient) Proxy.newProxyInstance(WireClient.class.getClassLoader(),
+            new Class<?>[]{WireClient.class}, (proxy, method, args) -> null);
+
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+
+    private static Outbox outbox(int capacity) {
+        Service.metrics = new MetricRegistry();
+
+        Config.Outbox config = new Config.Outbox();
+        config.threads = 4;
+        config.capacity = capacity;
+        config.attempts = 3;
+        config.backoff = 10;
+        config.maxBackoff = 20;
+        return new Outbox(config, botId -> CLIENT);
+    }
+
+    private Outbox.Delivery record(String message, CountDownLatch done) {
+        return client -> {
+            sent.add(message);
+            done.countDown();
+        };
+    }
+
+    private static Outbox.Delivery block(CountDownLatch started, CountDownLatch release) {
+        return client -> {
+            started.countDown();
+            release.await();
+        };
+    }
+
+    @Test
+    public void stalledConversationDoesNotHoldUpOthers() throws Exception {
+        Outbox outbox = outbox(100);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(outbox.send("stalled", block(started, release)));
+        assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+
+        CountDownLatch done = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(outbox.send("bot", record("m" + i, done)));
+        }
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m4"), sent);
+        release.countDown();
+    }
+
+    @Test
+    public void failedMessageHoldsBackTheNextUntilItsRetriesAreDone() throws Exception {
+        Outbox outbox = outbox(100);
+        CountDownLatch done = new CountDownLatch(2);
+        int[] attempts = {0};
+        // fails once and goes out on the retry
+        assertTrue(outbox.send("bot", client -> {
+            if (attempts[0]++ == 0) {
+                sent.add("first failed");
+                throw new IOException("backend down");
+            }
+            sent.add("first");
+            done.countDown();
+        }));
+        // fails every attempt, the next message still goes out after it
+        assertTrue(outbox.send("bot", client -> {
+            sent.add("second failed");
+            throw new IOException("backend down");
+        }));
+        assertTrue(outbox.send("bot", record("third", done)));
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("first failed", "first",
+                "second failed", "second failed", "second failed",
+                "third"), sent);
+    }
+
+    @Test
+    public void permanentErrorIsNotRetried() throws Exception {
+        Outbox outbox = outbox(100);
+        CountDownLatch done = new CountDownLatch(1);
+        assertTrue(outbox.send("bot", client -> {
+            sent.add("removed");
+            throw new IllegalStateException("bot left the conversation");
+        }));
+        assertTrue(outbox.send("bot", record("next", done)));
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("removed", "next"), sent);
+    }
+
+    @Test
+    public void retryResumesAtTheFailedStep() throws Exception {
+        Outbox outbox = outbox(100);
+        CountDownLatch done = new CountDownLatch(1);
+        int[] attempts = {0};
+        assertTrue(outbox.send("bot",
+                client -> sent.add("ping"),
+                client -> {
+                    if (attempts[0]++ == 0)
+                        throw new IOException("backend down");
+                    sent.add("text");
+                    done.countDown();
+                }));
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("ping", "text"), sent);
+    }
+
+    @Test
+    public void fullQueueDropsMessages() throws Exception {
+        Outbox outbox = outbox(3);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(outbox.send("bot", block(started, release)));
+        assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+
+        // the message being sent still takes its place in the queue
+        CountDownLatch done = new CountDownLatch(2);
+        assertTrue(outbox.send("bot", record("m1", done)));
+        assertTrue(outbox.send("bot", record("m2", done)));
+        assertFalse(outbox.send("bot", record("m3", done)));
+
+        release.countDown();
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("m1", "m2"), sent);
+        assertEquals(1, Service.metrics.meter(MetricRegistry.name(Outbox.class, "dropped")).getCount());
+    }
+}
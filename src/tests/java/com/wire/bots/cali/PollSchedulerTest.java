@@ -0,0 +1,54 @@
+package com.wire.bots.cali;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class PollSchedulerTest {
+    private static final long NOW = 1_500_000_000_000L;
+    private static final long MIN = TimeUnit.MINUTES.toMillis(1);
+    private static final long MAX = TimeUnit.MINUTES.toMillis(15);
+
+    private static long interval(long nextReminder, long lastChanged) {
+        return PollScheduler.interval(NOW, nextReminder, lastChanged, MIN, MAX);
+    }
+
+    @Test
+    public void quietCalendarIsPolledEveryMax() {
+        assertEquals(MAX, interval(PollScheduler.NONE, 0));
+        assertEquals(MAX, interval(NOW + TimeUnit.DAYS.toMillis(14), NOW - TimeUnit.DAYS.toMillis(30)));
+    }
+
+    @Test
+    public void closesInOnTheNextReminder() {
+        assertEquals(TimeUnit.MINUTES.toMillis(10), interval(NOW + TimeUnit.MINUTES.toMillis(20), 0));
+        assertEquals(MIN, interval(NOW + TimeUnit.SECONDS.toMillis(30), 0));
+    }
+
+    @Test
+    public void newBotsArePolledWithinMin() throws Exception {
+        PollScheduler schedule = new PollScheduler(50, MAX);
+        schedule.sync(Collections.singletonList("bot"), System.currentTimeMillis());
+
+        // spread over max the take would block for minutes
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<PollScheduler.Due> due = executor.submit(schedule::take);
+            assertEquals("bot", due.get(5, TimeUnit.SECONDS).botId);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void recentChangesArePolledSooner() {
+        assertEquals(TimeUnit.MINUTES.toMillis(5), interval(PollScheduler.NONE, NOW - TimeUnit.MINUTES.toMillis(10)));
+        assertEquals(MIN, interval(PollScheduler.NONE, NOW));
+    }
+}
@@ -0,0 +1,80 @@
+package com.wire.bots.cali;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReminderIndexTest {
+    @Test
+    public void evictsInFireTimeOrder() {
+        ReminderIndex<String> index = new ReminderIndex<>(8);
+        index.compute(1, 300, previous -> "c");
+        index.compute(2, 100, previous -> "a");
+        index.compute(3, 200, previous -> "b");
+
+        assertEquals(1, index.evict(150));
+        assertNull(index.get(2));
+        assertEquals("b", index.get(3));
+
+        // moved to later
+        index.compute(3, 400, previous -> previous);
+        assertEquals(1, index.evict(350));
+        assertNull(index.get(1));
+        assertEquals("b", index.get(3));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void removesOnlyTheSameValue() {
+        ReminderIndex<String> index = new ReminderIndex<>(8);
+        String first = "first";
+        index.compute(7, 100, previous -> first);
+        index.compute(7, 200, previous -> "second");
+
+        assertFalse(index.remove(7, first));
+        assertEquals("second", index.remove(7));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void matchesHashMapUnderChurn() {
+        Random random = new Random(42);
+        ReminderIndex<Long> index = new ReminderIndex<>(8);
+        HashMap<Long, Long> expected = new HashMap<>();
+
+        for (int n = 0; n < 200_000; n++) {
+            long key = random.nextInt(5000);
+            int op = random.nextInt(10);
+            if (op < 5) {
+                long at = random.nextInt(100_000);
+                index.compute(key, at, previous -> at);
+                expected.put(key, at);
+            } else if (op < 8) {
+                assertEquals(expected.remove(key), index.remove(key));
+            } else if (op < 9) {
+                long now = random.nextInt(5000);
+                int evicted = index.evict(now);
+                int before = expected.size();
+                expected.values().removeIf(at -> at <= now);
+                assertEquals(before - expected.size(), evicted);
+            } else {
+                assertEquals(expected.get(key), index.get(key));
+            }
+            assertEquals(expected.size(), index.size());
+        }
+        for (Long key : expected.keySet()) {
+            assertEquals(expected.get(key), index.get(key));
+        }
+    }
+
+    @Test
+    public void keysDifferPerReminder() {
+        long key = ReminderIndex.key("bot", "event", 0);
+        assertEquals(key, ReminderIndex.key("bot", "event", 0));
+        assertNotEquals(key, ReminderIndex.key("bot", "event", 1));
+        assertNotEquals(key, ReminderIndex.key("bo", "tevent", 0));
+    }
+}
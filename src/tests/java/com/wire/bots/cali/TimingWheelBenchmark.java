@@ -0,0 +1,81 @@
+package com.wire.bots.cali;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedule and cancel of one reminder while a million others are pending, on the wheel and on java.util.Timer.
+ * <p>
+ * mvn test-compile exec:java -Dexec.mainClass=com.wire.bots.cali.TimingWheelBenchmark -Dexec.classpathScope=test
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimingWheelBenchmark {
+    private static final int PENDING = 1_000_000;
+    private static final long HORIZON = TimeUnit.DAYS.toMillis(14);
+    private static final Runnable NOOP = () -> {
+    };
+    private static final Executor NOOP_EXECUTOR = Runnable::run;
+
+    private final Random random = new Random(42);
+    private TimingWheel wheel;
+    private Timer timer;
+    private long now;
+
+    @Setup
+    public void setup() {
+        now = System.currentTimeMillis();
+        wheel = new TimingWheel(100, 8, now, NOOP_EXECUTOR);
+        timer = new Timer(true);
+        for (int i = 0; i < PENDING; i++) {
+            long at = now + HORIZON / 2 + (long) (random.nextDouble() * HORIZON);
+            wheel.schedule(at, NOOP);
+            timer.schedule(new Task(), new Date(at));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        timer.cancel();
+    }
+
+    @Benchmark
+    public boolean wheelScheduleCancel() {
+        long at = now + HORIZON / 2 + (long) (random.nextDouble() * HORIZON);
+        return wheel.schedule(at, NOOP).cancel();
+    }
+
+    @Benchmark
+    public boolean timerScheduleCancel() {
+        long at = now + HORIZON / 2 + (long) (random.nextDouble() * HORIZON);
+        Task task = new Task();
+        timer.schedule(task, new Date(at));
+        // a cancelled TimerTask stays in the heap until it is due, the cancel itself is only a flag
+        return task.cancel();
+    }
+
+    private static class Task extends TimerTask {
+        @Override
+        public void run() {
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TimingWheelBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,122 @@
+package com.wire.bots.cali;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+    private static final long TICK = 100;
+    private static final long START = 1_500_000_000_000L;
+
+    private final List<Long> fired = new ArrayList<>();
+    private long now = START;
+
+    // Simulated clock: the test owns `now` and drives the wheel, tasks run inline
+    private final TimingWheel wheel = new TimingWheel(TICK, 4, START, Runnable::run);
+
+    private void advance(long millis) {
+        now += millis;
+        wheel.advanceTo(now);
+    }
+
+    private void schedule(long deadline) {
+        wheel.schedule(deadline, () -> {
+            assertTrue("fired early", now >= deadline);
+            assertTrue("fired late", now - deadline < TICK);
+            fired.add(deadline);
+        });
+    }
+
+    private static long expiry(long deadline) {
+        return (deadline - START + TICK - 1) / TICK;
+    }
+
+    @Test
+    public void firesAtDeadline() {
+        schedule(START + 250);
+        advance(200);
+        assertTrue(fired.isEmpty());
+        advance(100);
+        assertEquals(1, fired.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void pastDeadlineFiresOnNextAdvance() {
+        advance(1000);
+        wheel.schedule(START, () -> fired.add(START));
+        assertTrue(fired.isEmpty());
+        wheel.advanceTo(now);
+        assertEquals(1, fired.size());
+    }
+
+    @Test
+    public void cascadesThroughLevels() {
+        // 4 bits per level: 16, 256, 4096 ... ticks per level
+        long[] deadlines = {
+                START + TICK * 15,
+                START + TICK * 17,
+                START + TICK * 300,
+                START + TICK * 4097,
+                START + TimeUnit.DAYS.toMillis(3) + 7,
+        };
+        for (long deadline : deadlines) {
+            schedule(deadline);
+        }
+
+        while (now < START + TimeUnit.DAYS.toMillis(4)) {
+            advance(TICK);
+        }
+
+        assertEquals(deadlines.length, fired.size());
+        for (int i = 0; i < deadlines.length; i++) {
+            assertEquals(deadlines[i], (long) fired.get(i));
+        }
+    }
+
+    @Test
+    public void cancel() {
+        TimingWheel.Timeout a = wheel.schedule(START + 1000, () -> fired.add(1L));
+        TimingWheel.Timeout b = wheel.schedule(START + TimeUnit.HOURS.toMillis(2), () -> fired.add(2L));
+        assertEquals(2, wheel.size());
+
+        assertTrue(a.cancel());
+        assertFalse(a.cancel());
+        assertEquals(1, wheel.size());
+
+        advance(TimeUnit.HOURS.toMillis(1));
+        assertTrue(b.cancel());
+        advance(TimeUnit.HOURS.toMillis(2));
+
+        assertTrue(fired.isEmpty());
+        assertEquals(0, wheel.size());
+        assertFalse(b.isPending());
+    }
+
+    @Test
+    public void randomDeadlinesFireInOrder() {
+        Random random = new Random(42);
+        final int count = 10_000;
+        for (int i = 0; i < count; i++) {
+            long deadline = START + (long) (random.nextDouble() * TimeUnit.DAYS.toMillis(7));
+            wheel.schedule(deadline, () -> {
+                assertTrue("fired early", now >= deadline);
+                fired.add(deadline);
+            });
+        }
+
+        // irregular steps, like a clock thread that is sometimes late
+        while (fired.size() < count) {
+            advance(TICK * (1 + random.nextInt(50)));
+        }
+
+        for (int i = 1; i < count; i++) {
+            assertTrue(expiry(fired.get(i - 1)) <= expiry(fired.get(i)));
+        }
+    }
+}